@@ -0,0 +1,23 @@
+package org.xmlquery.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the standard JMH command line options, always adding the GC profiler so that
+ * allocation rates are reported alongside timings.
+ */
+public class BenchmarkRunner
+{
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException
+  {
+    Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build();
+
+    new Runner(options).run();
+  }
+}
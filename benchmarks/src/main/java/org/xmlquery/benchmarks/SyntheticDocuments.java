@@ -0,0 +1,44 @@
+package org.xmlquery.benchmarks;
+
+/**
+ * Generates synthetic XML documents of a given shape. The root element has {@code width} {@code record}
+ * children. Each record has a {@code name} and {@code fanOut} {@code item} children, and items nest
+ * {@code depth} levels deep with {@code fanOut} children at every level. Attribute values repeat so that
+ * value keys and low-cardinality columns can be exercised.
+ */
+public final class SyntheticDocuments
+{
+  private SyntheticDocuments()
+  {
+  }
+
+  public static String generateXMLString(int width, int depth, int fanOut)
+  {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<catalog>\n");
+    for (int record = 0; record < width; record++) {
+      sb.append("  <record id=\"r").append(record).append("\" status=\"s").append(record % 4).append("\">\n");
+      sb.append("    <name>Record ").append(record).append("</name>\n");
+      appendItems(sb, depth, fanOut, "    ", record + ".");
+      sb.append("  </record>\n");
+    }
+    sb.append("</catalog>\n");
+
+    return sb.toString();
+  }
+
+  private static void appendItems(StringBuilder sb, int depth, int fanOut, String indent, String idPrefix)
+  {
+    if (depth <= 0)
+      return;
+
+    for (int item = 0; item < fanOut; item++) {
+      String id = idPrefix + item;
+      sb.append(indent).append("<item id=\"").append(id).append("\" code=\"c").append(item % 10).append("\">\n");
+      sb.append(indent).append("  <value>").append(id).append("</value>\n");
+      appendItems(sb, depth - 1, fanOut, indent + "  ", id + ".");
+      sb.append(indent).append("</item>\n");
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.xmlquery.benchmarks;
+
+import org.jdom.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmlquery.XMLQueryException;
+import org.xmlquery.XMLUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for document parsing, XPath evaluation and absolute location construction in {@link XMLUtil}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XMLUtilBenchmark
+{
+  @Param({ "100", "5000" })
+  public int width;
+
+  @Param({ "1", "3" })
+  public int depth;
+
+  @Param({ "2", "5" })
+  public int fanOut;
+
+  private String xmlString;
+  private File xmlFile;
+  private String xmlFileURL;
+  private Document document;
+  private List<Object> records;
+  private List<Object> items;
+
+  @Setup(Level.Trial) public void setUp() throws IOException, XMLQueryException
+  {
+    xmlString = SyntheticDocuments.generateXMLString(width, depth, fanOut);
+    xmlFile = File.createTempFile("xml-query-exp-benchmark", ".xml");
+    Files.write(xmlFile.toPath(), xmlString.getBytes(StandardCharsets.UTF_8));
+    xmlFileURL = xmlFile.toURI().toString();
+    document = XMLUtil.processXMLString(xmlString);
+    records = XMLUtil.executeXPathExpression(document, "/catalog/record");
+    items = XMLUtil.executeXPathExpression(document, "//item");
+  }
+
+  @TearDown(Level.Trial) public void tearDown()
+  {
+    if (!xmlFile.delete())
+      xmlFile.deleteOnExit();
+  }
+
+  @Benchmark public Document processXMLString() throws XMLQueryException
+  {
+    return XMLUtil.processXMLString(xmlString);
+  }
+
+  @Benchmark public Document processXMLStream() throws XMLQueryException
+  {
+    return XMLUtil.processXMLStream(xmlFileURL);
+  }
+
+  @Benchmark public List<Object> executeAbsoluteXPathExpression() throws XMLQueryException
+  {
+    return XMLUtil.executeXPathExpression(document, "/catalog/record");
+  }
+
+  @Benchmark public void executeRelativeXPathExpressionPerRecord(Blackhole blackhole) throws XMLQueryException
+  {
+    for (Object record : records)
+      blackhole.consume(XMLUtil.executeXPathExpression(record, "item/@code"));
+  }
+
+  @Benchmark public void getAbsoluteXPathLocation(Blackhole blackhole) throws XMLQueryException
+  {
+    for (Object item : items)
+      blackhole.consume(XMLUtil.getAbsoluteXPathLocation(item));
+  }
+
+  @Benchmark public void getIndexedAbsoluteXPathLocation(Blackhole blackhole) throws XMLQueryException
+  {
+    XMLUtil.invalidateXPathLocationIndex(document); // Include the cost of building the index
+
+    for (Object item : items)
+      blackhole.consume(XMLUtil.getAbsoluteXPathLocation(document, item));
+  }
+}
@@ -0,0 +1,104 @@
+package org.xmlquery.benchmarks;
+
+import org.jdom.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmlquery.XMLQueryException;
+import org.xmlquery.XMLUtil;
+import org.xmlquery.XPathExpression;
+import org.xmlquery.XPathExpressionProcessor;
+import org.xmlquery.XPathResultValue;
+import org.xmlquery.XPathResultValueTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the row expansion performed by {@link XPathExpressionProcessor}. Each record is expanded by
+ * its items and each item by its code attribute, so the table has {@code width * fanOut} rows.
+ * <p>
+ * The document's location and element indexes are discarded before every invocation, and every value and
+ * location is read, so each invocation pays for evaluation, location building and key generation in full.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XPathExpressionProcessorBenchmark
+{
+  @Param({ "100", "5000" })
+  public int width;
+
+  @Param({ "1", "3" })
+  public int depth;
+
+  @Param({ "2", "5" })
+  public int fanOut;
+
+  private Document document;
+  private List<XPathExpression> expressions;
+  private List<String> columnNames;
+
+  @Setup(Level.Trial) public void setUp() throws XMLQueryException
+  {
+    document = XMLUtil.processXMLString(SyntheticDocuments.generateXMLString(width, depth, fanOut));
+    expressions = new ArrayList<>();
+    expressions.add(new XPathExpression("urn:benchmark", "/catalog/record", "record", true));
+    expressions.add(new XPathExpression("urn:benchmark", "item", "item"));
+    expressions.add(new XPathExpression("urn:benchmark", "@code", "code", false, true));
+    columnNames = Arrays.asList("record", "item", "code");
+  }
+
+  /**
+   * Discard the per-document indexes kept by the previous invocation. An invocation takes milliseconds, so the
+   * cost of an invocation-level fixture does not distort the measurement.
+   */
+  @Setup(Level.Invocation) public void discardDocumentIndexes()
+  {
+    XMLUtil.invalidateXPathLocationIndex(document);
+    XMLUtil.removeXPathElementIndex(document);
+  }
+
+  @Benchmark public void processXPathExpressions(Blackhole blackhole) throws XMLQueryException
+  {
+    XPathExpressionProcessor processor = new XPathExpressionProcessor();
+    XPathResultValueTable table = processor.processXPathExpressions(document, expressions,
+      new XPathResultValueTable("benchmark", columnNames));
+
+    for (List<XPathResultValue> row : table.getRows())
+      consumeRow(row, blackhole);
+  }
+
+  @Benchmark public void iterateXPathExpressions(Blackhole blackhole) throws XMLQueryException
+  {
+    XPathExpressionProcessor processor = new XPathExpressionProcessor();
+    Iterator<List<XPathResultValue>> rows = processor.iterateXPathExpressions(document, expressions);
+
+    while (rows.hasNext())
+      consumeRow(rows.next(), blackhole);
+  }
+
+  private static void consumeRow(List<XPathResultValue> row, Blackhole blackhole)
+  {
+    for (XPathResultValue value : row) {
+      blackhole.consume(value.getValue());
+      blackhole.consume(value.getXPathAbsoluteLocation());
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package org.xmlquery;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link XPathProcessorMetrics} that accumulate totals overall and per expression string. Counters are
+ * {@link LongAdder}s, so recording from many threads does not contend. Per-expression statistics are kept for
+ * every distinct expression seen.
+ *
+ * @see XPathProcessorMetricsJMXAdapter
+ */
+public class AccumulatingXPathProcessorMetrics implements XPathProcessorMetrics
+{
+  private final LongAdder parsedDocumentCount, parseNanos;
+  private final LongAdder processedDocumentCount;
+  private final LongAdder computedLocationCount, locationNanos;
+  private volatile long expressionKeyCount, valueKeyCount;
+  private final Map<String, ExpressionStatistics> expressionStatistics;
+
+  public AccumulatingXPathProcessorMetrics()
+  {
+    this.parsedDocumentCount = new LongAdder();
+    this.parseNanos = new LongAdder();
+    this.processedDocumentCount = new LongAdder();
+    this.computedLocationCount = new LongAdder();
+    this.locationNanos = new LongAdder();
+    this.expressionStatistics = new ConcurrentHashMap<>();
+  }
+
+  @Override public void documentParsed(String inputXMLStreamName, long nanos)
+  {
+    parsedDocumentCount.increment();
+    parseNanos.add(nanos);
+  }
+
+  @Override public void expressionCompiled(XPathExpression expression, long nanos)
+  {
+    ExpressionStatistics statistics = getExpressionStatistics(expression);
+
+    statistics.compileCount.increment();
+    statistics.compileNanos.add(nanos);
+  }
+
+  @Override public void expressionEvaluated(XPathExpression expression, long nanos, int matchedNodeCount)
+  {
+    ExpressionStatistics statistics = getExpressionStatistics(expression);
+
+    statistics.evaluationCount.increment();
+    statistics.evaluationNanos.add(nanos);
+    statistics.matchedNodeCount.add(matchedNodeCount);
+  }
+
+  @Override public void locationsComputed(int locationCount, long nanos)
+  {
+    computedLocationCount.add(locationCount);
+    locationNanos.add(nanos);
+  }
+
+  @Override public void columnExpanded(int column, XPathExpression expression, int rowCount)
+  {
+    ExpressionStatistics statistics = getExpressionStatistics(expression);
+
+    statistics.producedRowCount.add(rowCount);
+    statistics.maximumFanOut.accumulate(rowCount);
+  }
+
+  @Override public void documentProcessed(long expressionKeyCount, long valueKeyCount)
+  {
+    processedDocumentCount.increment();
+    this.expressionKeyCount = expressionKeyCount;
+    this.valueKeyCount = valueKeyCount;
+  }
+
+  public long getParsedDocumentCount()
+  {
+    return parsedDocumentCount.sum();
+  }
+
+  public long getParseNanos()
+  {
+    return parseNanos.sum();
+  }
+
+  public long getProcessedDocumentCount()
+  {
+    return processedDocumentCount.sum();
+  }
+
+  public long getComputedLocationCount()
+  {
+    return computedLocationCount.sum();
+  }
+
+  public long getLocationNanos()
+  {
+    return locationNanos.sum();
+  }
+
+  /**
+   * The number of keys held by the expression key generator when a document was last processed.
+   */
+  public long getExpressionKeyCount()
+  {
+    return expressionKeyCount;
+  }
+
+  /**
+   * The number of keys held by the value key generator when a document was last processed.
+   */
+  public long getValueKeyCount()
+  {
+    return valueKeyCount;
+  }
+
+  /**
+   * A snapshot of the statistics for each expression, ordered by expression.
+   */
+  public Map<String, ExpressionStatistics> getExpressionStatistics()
+  {
+    return Collections.unmodifiableMap(new TreeMap<>(expressionStatistics));
+  }
+
+  public void reset()
+  {
+    parsedDocumentCount.reset();
+    parseNanos.reset();
+    processedDocumentCount.reset();
+    computedLocationCount.reset();
+    locationNanos.reset();
+    expressionKeyCount = 0;
+    valueKeyCount = 0;
+    expressionStatistics.clear();
+  }
+
+  private ExpressionStatistics getExpressionStatistics(XPathExpression expression)
+  {
+    ExpressionStatistics statistics = expressionStatistics.get(expression.getXPathExpression());
+
+    return statistics != null ? statistics :
+      expressionStatistics.computeIfAbsent(expression.getXPathExpression(), e -> new ExpressionStatistics());
+  }
+
+  /**
+   * The accumulated statistics of one expression.
+   */
+  public static class ExpressionStatistics
+  {
+    private final LongAdder compileCount = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+    private final LongAdder evaluationCount = new LongAdder();
+    private final LongAdder evaluationNanos = new LongAdder();
+    private final LongAdder matchedNodeCount = new LongAdder();
+    private final LongAdder producedRowCount = new LongAdder();
+    private final LongAccumulator maximumFanOut = new LongAccumulator(Math::max, 0);
+
+    public long getCompileCount()
+    {
+      return compileCount.sum();
+    }
+
+    public long getCompileNanos()
+    {
+      return compileNanos.sum();
+    }
+
+    public long getEvaluationCount()
+    {
+      return evaluationCount.sum();
+    }
+
+    public long getEvaluationNanos()
+    {
+      return evaluationNanos.sum();
+    }
+
+    public long getMatchedNodeCount()
+    {
+      return matchedNodeCount.sum();
+    }
+
+    /**
+     * The number of rows produced by this expression's column, including rows for repeated context nodes.
+     */
+    public long getProducedRowCount()
+    {
+      return producedRowCount.sum();
+    }
+
+    /**
+     * The largest number of rows produced by this expression's column for a single row prefix.
+     */
+    public long getMaximumFanOut()
+    {
+      return maximumFanOut.get();
+    }
+
+    @Override public String toString()
+    {
+      return "ExpressionStatistics{" +
+        "compileCount=" + getCompileCount() +
+        ", compileNanos=" + getCompileNanos() +
+        ", evaluationCount=" + getEvaluationCount() +
+        ", evaluationNanos=" + getEvaluationNanos() +
+        ", matchedNodeCount=" + getMatchedNodeCount() +
+        ", producedRowCount=" + getProducedRowCount() +
+        ", maximumFanOut=" + getMaximumFanOut() +
+        '}';
+    }
+  }
+}
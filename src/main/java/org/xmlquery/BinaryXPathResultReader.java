@@ -0,0 +1,250 @@
+package org.xmlquery;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads result rows written by a {@link BinaryXPathResultWriter}, one row group at a time. Values read back
+ * have no JDOM node, and no absolute location if the writer did not store locations. Readers are not
+ * thread-safe.
+ * <p>
+ * Corrupt or truncated input is reported as an {@link XMLQueryException}. Counts and lengths read from the
+ * stream are checked against the format's limits, and storage is only allocated ahead of the data for small
+ * counts, so a corrupt count fails when the data runs out rather than allocating without bound.
+ *
+ * @see BinaryXPathResultWriter
+ */
+public class BinaryXPathResultReader implements Closeable
+{
+  private static final int PREALLOCATED_COUNT = 4096;
+
+  private final DataInputStream input;
+  private final boolean hasLocations;
+  private final String tableName;
+  private final List<String> columnNames;
+  private boolean isAtEnd;
+
+  public BinaryXPathResultReader(InputStream inputStream) throws XMLQueryException
+  {
+    this.input = new DataInputStream(new BufferedInputStream(inputStream));
+    this.isAtEnd = false;
+
+    try {
+      byte[] magic = new byte[BinaryXPathResultWriter.MAGIC.length];
+      input.readFully(magic);
+      if (!Arrays.equals(magic, BinaryXPathResultWriter.MAGIC))
+        throw new XMLQueryException("not a binary XPath result stream");
+
+      int version = input.readUnsignedByte();
+      if (version != BinaryXPathResultWriter.FORMAT_VERSION)
+        throw new XMLQueryException("unsupported binary XPath result format version " + version);
+
+      this.hasLocations = (input.readUnsignedByte() & BinaryXPathResultWriter.LOCATIONS_FLAG) != 0;
+      this.tableName = readString(input);
+
+      int columnNameCount = readVarInt(input);
+      List<String> columnNames = new ArrayList<>(Math.min(columnNameCount, PREALLOCATED_COUNT));
+      for (int i = 0; i < columnNameCount; i++)
+        columnNames.add(readString(input));
+      this.columnNames = Collections.unmodifiableList(columnNames);
+    } catch (IOException e) {
+      throw new XMLQueryException("error reading result table header: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Read a whole table from a stream.
+   */
+  public static XPathResultValueTable readTable(InputStream inputStream) throws XMLQueryException
+  {
+    BinaryXPathResultReader reader = new BinaryXPathResultReader(inputStream);
+    XPathResultValueTable table = new XPathResultValueTable(reader.getTableName(),
+      new ArrayList<>(reader.getColumnNames()));
+
+    reader.readRows(table);
+
+    return table;
+  }
+
+  public String getTableName()
+  {
+    return tableName;
+  }
+
+  public List<String> getColumnNames()
+  {
+    return columnNames;
+  }
+
+  public boolean hasLocations()
+  {
+    return hasLocations;
+  }
+
+  /**
+   * Read the next row group, returning null at the end of the stream.
+   */
+  public List<List<XPathResultValue>> readRowGroup() throws XMLQueryException
+  {
+    if (isAtEnd)
+      return null;
+
+    try {
+      int marker = input.readUnsignedByte();
+
+      if (marker == BinaryXPathResultWriter.END_MARKER) {
+        isAtEnd = true;
+        return null;
+      } else if (marker != BinaryXPathResultWriter.ROW_GROUP_MARKER)
+        throw new XMLQueryException("corrupt binary XPath result stream: unexpected marker " + marker);
+
+      int rowCount = readVarInt(input);
+      if (rowCount > BinaryXPathResultWriter.MAXIMUM_ROW_GROUP_SIZE)
+        throw new XMLQueryException("corrupt binary XPath result stream: row group of " + rowCount + " rows");
+
+      int columnCount = readVarInt(input);
+
+      List<XPathResultValue[]> columns = new ArrayList<>(Math.min(columnCount, PREALLOCATED_COUNT));
+
+      for (int column = 0; column < columnCount; column++) {
+        String xPathExpression = readString(input);
+        List<String> values = readStringChunk(input, rowCount);
+        List<String> locations = hasLocations ? readStringChunk(input, rowCount) : null;
+        XPathResultValue[] columnValues = new XPathResultValue[rowCount]; // The chunks were as long as claimed
+
+        for (int row = 0; row < rowCount; row++)
+          columnValues[row] = new XPathResultValue(xPathExpression, locations != null ? locations.get(row) : null,
+            null, values.get(row));
+        columns.add(columnValues);
+      }
+
+      List<List<XPathResultValue>> rowGroup = new ArrayList<>(rowCount);
+      for (int row = 0; row < rowCount; row++) {
+        List<XPathResultValue> rowValues = new ArrayList<>(columnCount);
+
+        for (XPathResultValue[] columnValues : columns)
+          rowValues.add(columnValues[row]);
+        rowGroup.add(rowValues);
+      }
+      return rowGroup;
+    } catch (EOFException e) {
+      throw new XMLQueryException("truncated binary XPath result stream", e);
+    } catch (IOException e) {
+      throw new XMLQueryException("error reading result row group: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Deliver all remaining rows to a sink, one row group at a time.
+   */
+  public void readRows(XPathResultRowSink sink) throws XMLQueryException
+  {
+    List<List<XPathResultValue>> rowGroup;
+
+    while ((rowGroup = readRowGroup()) != null)
+      for (List<XPathResultValue> row : rowGroup)
+        sink.acceptRow(row);
+  }
+
+  @Override public void close() throws IOException
+  {
+    input.close();
+  }
+
+  private static List<String> readStringChunk(DataInputStream input, int rowCount) throws IOException
+  {
+    int encoding = input.readUnsignedByte();
+
+    if (encoding == BinaryXPathResultWriter.PLAIN_ENCODING)
+      return readFrontCodedStrings(input, rowCount);
+    else if (encoding != BinaryXPathResultWriter.DICTIONARY_ENCODING)
+      throw new IOException("unknown chunk encoding " + encoding);
+
+    int dictionarySize = readVarInt(input);
+    if (dictionarySize > rowCount)
+      throw new IOException("dictionary of " + dictionarySize + " strings for " + rowCount + " rows");
+
+    List<String> dictionary = readFrontCodedStrings(input, dictionarySize);
+    List<String> rowValues = new ArrayList<>(Math.min(rowCount, PREALLOCATED_COUNT));
+
+    for (int row = 0; row < rowCount; row++) {
+      int code = readVarInt(input);
+      if (code > dictionary.size())
+        throw new IOException("dictionary code " + code + " out of range");
+      rowValues.add(code == 0 ? null : dictionary.get(code - 1));
+    }
+    return rowValues;
+  }
+
+  private static List<String> readFrontCodedStrings(DataInputStream input, int count) throws IOException
+  {
+    List<String> strings = new ArrayList<>(Math.min(count, PREALLOCATED_COUNT));
+    String previous = "";
+
+    for (int i = 0; i < count; i++) {
+      int prefixLength = readVarInt(input);
+      String suffix = readString(input);
+
+      if (suffix == null)
+        strings.add(null);
+      else {
+        if (prefixLength > previous.length())
+          throw new IOException("shared prefix length " + prefixLength + " out of range");
+        previous = previous.substring(0, prefixLength) + suffix;
+        strings.add(previous);
+      }
+    }
+    return strings;
+  }
+
+  /**
+   * Read a varint, which the format limits to the non-negative range of an int.
+   */
+  private static int readVarInt(DataInputStream input) throws IOException
+  {
+    int value = 0;
+
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = input.readUnsignedByte();
+      if (shift == 28 && (b & 0x78) != 0)
+        throw new IOException("varint out of range");
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IOException("malformed varint");
+  }
+
+  private static String readString(DataInputStream input) throws IOException
+  {
+    int length = readVarInt(input);
+
+    if (length == 0)
+      return null;
+    else if (length - 1 <= PREALLOCATED_COUNT) {
+      byte[] bytes = new byte[length - 1];
+      input.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(PREALLOCATED_COUNT);
+    byte[] buffer = new byte[PREALLOCATED_COUNT];
+
+    for (int remaining = length - 1; remaining > 0; remaining -= buffer.length) { // Grow only as bytes arrive
+      int chunkLength = Math.min(remaining, buffer.length);
+      input.readFully(buffer, 0, chunkLength);
+      bytes.write(buffer, 0, chunkLength);
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,327 @@
+package org.xmlquery;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes result rows in a compact binary columnar format that {@link BinaryXPathResultReader} reads back.
+ * Rows are buffered into row groups of a fixed number of rows, so memory use is bounded by the row group size.
+ * <p>
+ * The stream starts with a header: the magic bytes {@code XQRC}, a format version, a flags byte (bit 0 set if
+ * absolute locations are stored), the table name and the column names. Each row group is then written as a
+ * {@code 1} byte, the row and column counts, and for each column its XPath expression, a chunk of values and,
+ * if they are stored, a chunk of absolute locations. The stream ends with a {@code 0} byte.
+ * <p>
+ * A chunk starts with an encoding byte. A dictionary-encoded chunk ({@code 0}) holds the number of distinct
+ * strings, the strings, and one code per row: the string's index plus one, or 0 for null. Chunks with too many
+ * distinct strings for a dictionary to pay off are plain ({@code 1}) and hold one string per row. Strings in a
+ * chunk are front-coded: each is the length of the prefix shared with the previous string, then the remainder.
+ * <p>
+ * Integers are unsigned LEB128 varints no larger than {@link Integer#MAX_VALUE}. Strings are a varint of their
+ * UTF-8 length plus one, with 0 for null, followed by the UTF-8 bytes. A row group holds at most
+ * {@link #MAXIMUM_ROW_GROUP_SIZE} rows. Nodes are not written. Writers are not thread-safe.
+ *
+ * @see BinaryXPathResultReader
+ */
+public class BinaryXPathResultWriter implements XPathResultRowSink, Flushable, Closeable
+{
+  public static final int DEFAULT_ROW_GROUP_SIZE = 64 * 1024;
+  public static final int MAXIMUM_ROW_GROUP_SIZE = 1024 * 1024;
+
+  static final byte[] MAGIC = { 'X', 'Q', 'R', 'C' };
+  static final int FORMAT_VERSION = 1;
+  static final int LOCATIONS_FLAG = 1;
+  static final int ROW_GROUP_MARKER = 1;
+  static final int END_MARKER = 0;
+  static final int DICTIONARY_ENCODING = 0;
+  static final int PLAIN_ENCODING = 1;
+
+  private final DataOutputStream output;
+  private final boolean writeLocations;
+  private final int rowGroupSize;
+  private final List<ColumnChunk> columnChunks;
+  private int bufferedRowCount;
+  private long rowCount;
+  private boolean isClosed;
+
+  public BinaryXPathResultWriter(OutputStream outputStream, String tableName, List<String> columnNames)
+    throws XMLQueryException
+  {
+    this(outputStream, tableName, columnNames, true, DEFAULT_ROW_GROUP_SIZE);
+  }
+
+  /**
+   * @param writeLocations whether to store the absolute location of every value
+   * @param rowGroupSize   the number of rows buffered before a row group is written
+   */
+  public BinaryXPathResultWriter(OutputStream outputStream, String tableName, List<String> columnNames,
+    boolean writeLocations, int rowGroupSize) throws XMLQueryException
+  {
+    if (rowGroupSize < 1 || rowGroupSize > MAXIMUM_ROW_GROUP_SIZE)
+      throw new IllegalArgumentException("row group size must be between 1 and " + MAXIMUM_ROW_GROUP_SIZE + ", got " +
+        rowGroupSize);
+
+    this.output = new DataOutputStream(new BufferedOutputStream(outputStream));
+    this.writeLocations = writeLocations;
+    this.rowGroupSize = rowGroupSize;
+    this.columnChunks = new ArrayList<>();
+    this.bufferedRowCount = 0;
+    this.rowCount = 0;
+    this.isClosed = false;
+
+    try {
+      output.write(MAGIC);
+      output.writeByte(FORMAT_VERSION);
+      output.writeByte(writeLocations ? LOCATIONS_FLAG : 0);
+      writeString(output, tableName);
+      writeVarInt(output, columnNames.size());
+      for (String columnName : columnNames)
+        writeString(output, columnName);
+    } catch (IOException e) {
+      throw new XMLQueryException("error writing result table header: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Write a whole table and finish the stream without closing it.
+   */
+  public static void writeTable(XPathResultValueTable table, OutputStream outputStream, boolean writeLocations)
+    throws XMLQueryException
+  {
+    BinaryXPathResultWriter writer = new BinaryXPathResultWriter(outputStream, table.getTableName(),
+      table.getColumnNames(), writeLocations, DEFAULT_ROW_GROUP_SIZE);
+
+    for (List<XPathResultValue> row : table.getRows())
+      writer.acceptRow(row);
+    writer.finish();
+  }
+
+  /**
+   * The number of rows accepted so far.
+   */
+  public long getRowCount()
+  {
+    return rowCount;
+  }
+
+  @Override public void acceptRow(List<XPathResultValue> row) throws XMLQueryException
+  {
+    if (isClosed)
+      throw new XMLQueryException("result writer is closed");
+
+    if (bufferedRowCount > 0 && row.size() != columnChunks.size())
+      writeRowGroup(); // A row group has a single column count
+
+    if (bufferedRowCount == 0) {
+      columnChunks.clear();
+      for (XPathResultValue value : row)
+        columnChunks.add(new ColumnChunk(value.getXPathExpression()));
+    }
+
+    for (int column = 0; column < row.size(); column++) {
+      XPathResultValue value = row.get(column);
+      ColumnChunk columnChunk = columnChunks.get(column);
+
+      if (!columnChunk.xPathExpression.equals(value.getXPathExpression())) {
+        writeRowGroup(); // A column has a single expression within a row group
+        acceptRow(row);
+        return;
+      }
+    }
+
+    for (int column = 0; column < row.size(); column++) {
+      XPathResultValue value = row.get(column);
+      ColumnChunk columnChunk = columnChunks.get(column);
+
+      columnChunk.values.add(value.getValue());
+      if (writeLocations)
+        columnChunk.locations.add(value.getXPathAbsoluteLocation());
+    }
+
+    bufferedRowCount++;
+    rowCount++;
+
+    if (bufferedRowCount == rowGroupSize)
+      writeRowGroup();
+  }
+
+  /**
+   * Write any buffered rows and the end marker, and flush the output without closing it.
+   */
+  public void finish() throws XMLQueryException
+  {
+    if (isClosed)
+      return;
+
+    writeRowGroup();
+    try {
+      output.writeByte(END_MARKER);
+      output.flush();
+    } catch (IOException e) {
+      throw new XMLQueryException("error writing result table: " + e.getMessage(), e);
+    }
+    isClosed = true;
+  }
+
+  @Override public void flush() throws IOException
+  {
+    output.flush();
+  }
+
+  @Override public void close() throws IOException
+  {
+    try {
+      finish();
+    } catch (XMLQueryException e) {
+      throw new IOException(e.getMessage(), e);
+    } finally {
+      output.close();
+    }
+  }
+
+  private void writeRowGroup() throws XMLQueryException
+  {
+    if (bufferedRowCount == 0)
+      return;
+
+    try {
+      output.writeByte(ROW_GROUP_MARKER);
+      writeVarInt(output, bufferedRowCount);
+      writeVarInt(output, columnChunks.size());
+
+      for (ColumnChunk columnChunk : columnChunks) {
+        writeString(output, columnChunk.xPathExpression);
+        columnChunk.values.writeTo(output);
+        if (writeLocations)
+          columnChunk.locations.writeTo(output);
+      }
+    } catch (IOException e) {
+      throw new XMLQueryException("error writing result row group: " + e.getMessage(), e);
+    }
+    bufferedRowCount = 0;
+    columnChunks.clear();
+  }
+
+  static void writeVarInt(DataOutputStream output, int value) throws IOException
+  {
+    while ((value & ~0x7f) != 0) {
+      output.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    output.writeByte(value);
+  }
+
+  static void writeString(DataOutputStream output, String s) throws IOException
+  {
+    if (s == null)
+      writeVarInt(output, 0);
+    else {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(output, bytes.length + 1);
+      output.write(bytes);
+    }
+  }
+
+  private static class ColumnChunk
+  {
+    private final String xPathExpression;
+    private final StringChunk values;
+    private final StringChunk locations;
+
+    public ColumnChunk(String xPathExpression)
+    {
+      this.xPathExpression = xPathExpression;
+      this.values = new StringChunk();
+      this.locations = new StringChunk();
+    }
+  }
+
+  /**
+   * The strings of one column in one row group, dictionary-encoded as they are added. The chunk is written
+   * with its dictionary if that saves space, and as plain strings otherwise.
+   */
+  private static class StringChunk
+  {
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> dictionary = new ArrayList<>();
+    private int[] rowCodes = new int[16];
+    private int rowCount;
+
+    public void add(String s)
+    {
+      int code = 0;
+
+      if (s != null) {
+        Integer existingCode = codes.get(s);
+
+        if (existingCode == null) {
+          dictionary.add(s);
+          code = dictionary.size();
+          codes.put(s, code);
+        } else
+          code = existingCode;
+      }
+
+      if (rowCount == rowCodes.length)
+        rowCodes = Arrays.copyOf(rowCodes, rowCount * 2);
+      rowCodes[rowCount++] = code;
+    }
+
+    public void writeTo(DataOutputStream output) throws IOException
+    {
+      if (dictionary.size() * 2 <= rowCount) {
+        output.writeByte(DICTIONARY_ENCODING);
+        writeVarInt(output, dictionary.size());
+        writeFrontCodedStrings(output, dictionary);
+        for (int i = 0; i < rowCount; i++)
+          writeVarInt(output, rowCodes[i]);
+      } else {
+        List<String> rowValues = new ArrayList<>(rowCount);
+
+        for (int i = 0; i < rowCount; i++)
+          rowValues.add(rowCodes[i] == 0 ? null : dictionary.get(rowCodes[i] - 1));
+
+        output.writeByte(PLAIN_ENCODING);
+        writeFrontCodedStrings(output, rowValues);
+      }
+    }
+  }
+
+  /**
+   * Write each string as the length of the prefix it shares with the previous string followed by the rest of
+   * the string, which is null for a null string.
+   */
+  private static void writeFrontCodedStrings(DataOutputStream output, List<String> strings) throws IOException
+  {
+    String previous = "";
+
+    for (String s : strings) {
+      if (s == null) {
+        writeVarInt(output, 0);
+        writeString(output, null);
+      } else {
+        int prefixLength = 0;
+        int maximumPrefixLength = Math.min(previous.length(), s.length());
+
+        while (prefixLength < maximumPrefixLength && previous.charAt(prefixLength) == s.charAt(prefixLength))
+          prefixLength++;
+        if (prefixLength > 0 && Character.isHighSurrogate(s.charAt(prefixLength - 1)))
+          prefixLength--; // Keep surrogate pairs together
+
+        writeVarInt(output, prefixLength);
+        writeString(output, s.substring(prefixLength));
+        previous = s;
+      }
+    }
+  }
+}
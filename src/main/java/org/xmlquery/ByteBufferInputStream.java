@@ -0,0 +1,47 @@
+package org.xmlquery;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream that reads directly from a byte buffer, such as a memory-mapped file, without an intermediate
+ * copy. Not thread-safe.
+ */
+class ByteBufferInputStream extends InputStream
+{
+  private final ByteBuffer buffer;
+
+  public ByteBufferInputStream(ByteBuffer buffer)
+  {
+    this.buffer = buffer;
+  }
+
+  @Override public int read()
+  {
+    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+  }
+
+  @Override public int read(byte[] bytes, int offset, int length)
+  {
+    if (length == 0)
+      return 0;
+    else if (!buffer.hasRemaining())
+      return -1;
+
+    int count = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, count);
+    return count;
+  }
+
+  @Override public long skip(long n)
+  {
+    int count = (int)Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + count);
+    return count;
+  }
+
+  @Override public int available()
+  {
+    return buffer.remaining();
+  }
+}
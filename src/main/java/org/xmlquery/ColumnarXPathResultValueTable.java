@@ -0,0 +1,302 @@
+package org.xmlquery;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link XPathResultValueTable} that stores its cells by column rather than as one {@link XPathResultValue}
+ * per cell. Each column records its XPath expression once and its values as codes into a per-column
+ * dictionary. Absolute locations are stored as codes into a dictionary shared by the whole table, so a location
+ * repeated down a column by row expansion is stored once. JDOM nodes are only retained if requested, each once
+ * under an ID given by its identity, and locations may be left unread.
+ * <p>
+ * The row API is a read-only view: {@link #getRows()} creates {@link XPathResultValue}s on access, so they are
+ * equal in content but not identical to the ones added. Every cell in a column must come from the same
+ * expression, as it does in tables produced by an {@link XPathExpressionProcessor}.
+ *
+ * @see XPathExpressionProcessor#processXPathExpressions
+ */
+public class ColumnarXPathResultValueTable extends XPathResultValueTable
+{
+  private static final int NULL_CODE = -1;
+
+  private final boolean retainNodes;
+  private final boolean retainLocations;
+  private final List<Column> columns;
+  private final StringDictionary locations;
+  private final List<Object> nodes;
+  private final Map<Object, Integer> nodeIDs;
+  private int rowCount;
+
+  public ColumnarXPathResultValueTable(String tableName)
+  {
+    this(tableName, new ArrayList<String>(), false);
+  }
+
+  public ColumnarXPathResultValueTable(String tableName, List<String> columnNames)
+  {
+    this(tableName, columnNames, false);
+  }
+
+  /**
+   * @param retainNodes whether to keep the JDOM node of every cell; if not, {@link XPathResultValue#getNode()}
+   *                    returns null for the cells of this table
+   */
+  public ColumnarXPathResultValueTable(String tableName, List<String> columnNames, boolean retainNodes)
+  {
+    this(tableName, columnNames, retainNodes, true);
+  }
+
+  /**
+   * @param retainNodes     whether to keep the JDOM node of every cell; if not, {@link XPathResultValue#getNode()}
+   *                        returns null for the cells of this table
+   * @param retainLocations whether to keep the absolute location of every cell; if not, locations are never read
+   *                        from the values added, so lazily resolved ones are never resolved, and
+   *                        {@link XPathResultValue#getXPathAbsoluteLocation()} returns null for the cells of this
+   *                        table
+   */
+  public ColumnarXPathResultValueTable(String tableName, List<String> columnNames, boolean retainNodes,
+    boolean retainLocations)
+  {
+    super(tableName, columnNames);
+    this.retainNodes = retainNodes;
+    this.retainLocations = retainLocations;
+    this.columns = new ArrayList<>();
+    this.locations = retainLocations ? new StringDictionary() : null;
+    this.nodes = retainNodes ? new ArrayList<>() : null;
+    this.nodeIDs = retainNodes ? new IdentityHashMap<Object, Integer>() : null;
+    this.rowCount = 0;
+  }
+
+  public boolean isRetainingNodes()
+  {
+    return retainNodes;
+  }
+
+  public boolean isRetainingLocations()
+  {
+    return retainLocations;
+  }
+
+  public int getRowCount()
+  {
+    return rowCount;
+  }
+
+  public int getColumnCount()
+  {
+    return columns.size();
+  }
+
+  @Override public List<List<XPathResultValue>> getRows()
+  {
+    return new AbstractList<List<XPathResultValue>>()
+    {
+      @Override public List<XPathResultValue> get(int rowIndex)
+      {
+        checkRowIndex(rowIndex);
+        return new RowView(rowIndex);
+      }
+
+      @Override public int size()
+      {
+        return rowCount;
+      }
+    };
+  }
+
+  /**
+   * Add a row, which is checked in full before any of it is stored, so a rejected row leaves the table unchanged.
+   */
+  @Override public void addRow(List<XPathResultValue> row)
+  {
+    if (rowCount == 0 && columns.isEmpty()) {
+      for (XPathResultValue cell : row)
+        columns.add(new Column(cell.getXPathExpression(), retainNodes, retainLocations));
+    } else if (row.size() != columns.size())
+      throw new IllegalArgumentException("expecting row with " + columns.size() + " cells, got " + row.size());
+
+    for (int columnIndex = 0; columnIndex < row.size(); columnIndex++) {
+      String xPathExpression = columns.get(columnIndex).xPathExpression;
+
+      if (!xPathExpression.equals(row.get(columnIndex).getXPathExpression()))
+        throw new IllegalArgumentException("column " + columnIndex + " holds values of expression '" +
+          xPathExpression + "', got '" + row.get(columnIndex).getXPathExpression() + "'");
+    }
+
+    for (int columnIndex = 0; columnIndex < row.size(); columnIndex++) {
+      XPathResultValue cell = row.get(columnIndex);
+      Column column = columns.get(columnIndex);
+
+      column.valueCodes.add(column.values.encode(cell.getValue()));
+      if (retainLocations)
+        column.locationCodes.add(locations.encode(cell.getXPathAbsoluteLocation()));
+      if (retainNodes)
+        column.nodeIDs.add(encodeNode(cell.getNode()));
+    }
+    rowCount++;
+  }
+
+  @Override public boolean isEmpty()
+  {
+    return rowCount == 0;
+  }
+
+  @Override public XPathResultValueTable createEmptyTable()
+  {
+    return new ColumnarXPathResultValueTable(getTableName(), getColumnNames(), retainNodes, retainLocations);
+  }
+
+  public String getXPathExpression(int columnIndex)
+  {
+    return columns.get(columnIndex).xPathExpression;
+  }
+
+  public String getValue(int rowIndex, int columnIndex)
+  {
+    checkRowIndex(rowIndex);
+    Column column = columns.get(columnIndex);
+    return column.values.decode(column.valueCodes.get(rowIndex));
+  }
+
+  public String getXPathAbsoluteLocation(int rowIndex, int columnIndex)
+  {
+    checkRowIndex(rowIndex);
+    return retainLocations ? locations.decode(columns.get(columnIndex).locationCodes.get(rowIndex)) : null;
+  }
+
+  /**
+   * The ID of the node in a cell, unique within this table, or -1 if the cell has no node or the table does not
+   * retain nodes.
+   */
+  public int getNodeID(int rowIndex, int columnIndex)
+  {
+    checkRowIndex(rowIndex);
+    return retainNodes ? columns.get(columnIndex).nodeIDs.get(rowIndex) : NULL_CODE;
+  }
+
+  public Object getNode(int rowIndex, int columnIndex)
+  {
+    int nodeID = getNodeID(rowIndex, columnIndex);
+    return nodeID != NULL_CODE ? nodes.get(nodeID) : null;
+  }
+
+  public int getDistinctValueCount(int columnIndex)
+  {
+    return columns.get(columnIndex).values.size();
+  }
+
+  private int encodeNode(Object node)
+  {
+    if (node == null)
+      return NULL_CODE;
+
+    Integer nodeID = nodeIDs.get(node);
+
+    if (nodeID == null) {
+      nodeID = nodes.size();
+      nodeIDs.put(node, nodeID);
+      nodes.add(node);
+    }
+    return nodeID;
+  }
+
+  private void checkRowIndex(int rowIndex)
+  {
+    if (rowIndex < 0 || rowIndex >= rowCount)
+      throw new IndexOutOfBoundsException("row " + rowIndex + " of " + rowCount);
+  }
+
+  private class RowView extends AbstractList<XPathResultValue>
+  {
+    private final int rowIndex;
+
+    public RowView(int rowIndex)
+    {
+      this.rowIndex = rowIndex;
+    }
+
+    @Override public XPathResultValue get(int columnIndex)
+    {
+      return new XPathResultValue(getXPathExpression(columnIndex), getXPathAbsoluteLocation(rowIndex, columnIndex),
+        getNode(rowIndex, columnIndex), getValue(rowIndex, columnIndex));
+    }
+
+    @Override public int size()
+    {
+      return columns.size();
+    }
+  }
+
+  private static class Column
+  {
+    private final String xPathExpression;
+    private final StringDictionary values;
+    private final IntArray valueCodes;
+    private final IntArray locationCodes;
+    private final IntArray nodeIDs;
+
+    public Column(String xPathExpression, boolean retainNodes, boolean retainLocations)
+    {
+      this.xPathExpression = xPathExpression;
+      this.values = new StringDictionary();
+      this.valueCodes = new IntArray();
+      this.locationCodes = retainLocations ? new IntArray() : null;
+      this.nodeIDs = retainNodes ? new IntArray() : null;
+    }
+  }
+
+  private static class StringDictionary
+  {
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    public int encode(String s)
+    {
+      if (s == null)
+        return NULL_CODE;
+
+      Integer code = codes.get(s);
+
+      if (code == null) {
+        code = strings.size();
+        codes.put(s, code);
+        strings.add(s);
+      }
+      return code;
+    }
+
+    public String decode(int code)
+    {
+      return code == NULL_CODE ? null : strings.get(code);
+    }
+
+    public int size()
+    {
+      return strings.size();
+    }
+  }
+
+  private static class IntArray
+  {
+    private int[] elements = new int[16];
+    private int size;
+
+    public void add(int element)
+    {
+      if (size == elements.length)
+        elements = Arrays.copyOf(elements, size * 2);
+      elements[size++] = element;
+    }
+
+    public int get(int index)
+    {
+      return elements[index];
+    }
+  }
+}
@@ -0,0 +1,488 @@
+package org.xmlquery;
+
+import org.jdom.Attribute;
+import org.jdom.Comment;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.ProcessingInstruction;
+import org.jdom.Text;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read-only, array-backed copy of a JDOM {@link Document} in which every node is an int ID. Nodes are numbered
+ * in document order, with an element's attributes numbered directly after it and before its children, and are
+ * described by parallel arrays of kinds, parents, next siblings, interned names and text. The JDOM tree can be
+ * discarded once the copy is made.
+ * <p>
+ * Result values generated from a compact document hold their node as a {@link Node}, which holds only its node
+ * ID, rather than a JDOM node, so a result table does not keep a document tree alive, and navigation and absolute
+ * locations are array lookups. Jaxen tells nodes apart by reference, so the document hands out a single canonical
+ * {@code Node} per node ID, created the first time the node is visited.
+ * <p>
+ * Entity references, document types and namespace nodes are not copied. Immutable, so it may be shared between
+ * threads.
+ *
+ * @see XPathExpressionProcessor#processXPathExpressions(CompactDocument, List, XPathResultValueTable)
+ */
+public final class CompactDocument
+{
+  public enum NodeKind
+  {
+    DOCUMENT, ELEMENT, ATTRIBUTE, TEXT, COMMENT, PROCESSING_INSTRUCTION
+  }
+
+  public static final int DOCUMENT_NODE_ID = 0;
+  public static final int NO_NODE = -1;
+
+  private static final NodeKind[] NODE_KINDS = NodeKind.values();
+  private static final String XML_NAMESPACE_PREFIX = "xml";
+
+  private final byte[] kinds;
+  private final int[] parents;
+  private final int[] nextSiblings;
+  private final int[] nameCodes;
+  private final int[] positions;
+  private final String[] texts;
+  private final String[] localNames, prefixes, namespaceURIs;
+  private final Map<Integer, String[]> namespaceDeclarations;
+  private final AtomicReferenceArray<Node> nodes;
+  private final CompactDocumentNavigator navigator;
+
+  private CompactDocument(Builder builder)
+  {
+    int nodeCount = builder.nodeCount;
+
+    this.kinds = Arrays.copyOf(builder.kinds, nodeCount);
+    this.parents = Arrays.copyOf(builder.parents, nodeCount);
+    this.nextSiblings = Arrays.copyOf(builder.nextSiblings, nodeCount);
+    this.nameCodes = Arrays.copyOf(builder.nameCodes, nodeCount);
+    this.positions = Arrays.copyOf(builder.positions, nodeCount);
+    this.texts = Arrays.copyOf(builder.texts, nodeCount);
+    this.localNames = builder.localNames.toArray(new String[0]);
+    this.prefixes = builder.prefixes.toArray(new String[0]);
+    this.namespaceURIs = builder.namespaceURIs.toArray(new String[0]);
+    this.namespaceDeclarations = builder.namespaceDeclarations;
+    this.nodes = new AtomicReferenceArray<>(nodeCount);
+    this.navigator = new CompactDocumentNavigator(this);
+  }
+
+  /**
+   * Copy a JDOM document.
+   */
+  public static CompactDocument create(Document document)
+  {
+    Builder builder = new Builder();
+
+    builder.addDocument(document);
+
+    return new CompactDocument(builder);
+  }
+
+  public int getNodeCount()
+  {
+    return kinds.length;
+  }
+
+  public NodeKind getNodeKind(int nodeId)
+  {
+    return NODE_KINDS[kinds[nodeId]];
+  }
+
+  public boolean isElement(int nodeId)
+  {
+    return kinds[nodeId] == NodeKind.ELEMENT.ordinal();
+  }
+
+  public boolean isAttribute(int nodeId)
+  {
+    return kinds[nodeId] == NodeKind.ATTRIBUTE.ordinal();
+  }
+
+  /**
+   * The root element, or {@link #NO_NODE} if the document has none.
+   */
+  public int getRootElement()
+  {
+    for (int child = getFirstChild(DOCUMENT_NODE_ID); child != NO_NODE; child = nextSiblings[child])
+      if (isElement(child))
+        return child;
+    return NO_NODE;
+  }
+
+  /**
+   * The parent of a node, which for an attribute is its element, or {@link #NO_NODE} for the document.
+   */
+  public int getParent(int nodeId)
+  {
+    return parents[nodeId];
+  }
+
+  /**
+   * The first child of the document or an element, or {@link #NO_NODE}. Attributes are not children.
+   */
+  public int getFirstChild(int nodeId)
+  {
+    int kind = kinds[nodeId];
+
+    if (kind != NodeKind.DOCUMENT.ordinal() && kind != NodeKind.ELEMENT.ordinal())
+      return NO_NODE;
+
+    int child = nodeId + 1;
+    while (child < kinds.length && parents[child] == nodeId && isAttribute(child))
+      child++;
+    return child < kinds.length && parents[child] == nodeId ? child : NO_NODE;
+  }
+
+  /**
+   * The first attribute of an element, or {@link #NO_NODE}.
+   */
+  public int getFirstAttribute(int nodeId)
+  {
+    int attribute = nodeId + 1;
+
+    return isElement(nodeId) && attribute < kinds.length && parents[attribute] == nodeId && isAttribute(attribute) ?
+      attribute : NO_NODE;
+  }
+
+  /**
+   * The next child of the same parent, or the next attribute of the same element, or {@link #NO_NODE}.
+   */
+  public int getNextSibling(int nodeId)
+  {
+    return nextSiblings[nodeId];
+  }
+
+  /**
+   * The local name of an element or attribute, or the target of a processing instruction.
+   */
+  public String getLocalName(int nodeId)
+  {
+    return nameCodes[nodeId] == NO_NODE ? null : localNames[nameCodes[nodeId]];
+  }
+
+  public String getNamespacePrefix(int nodeId)
+  {
+    return nameCodes[nodeId] == NO_NODE ? null : prefixes[nameCodes[nodeId]];
+  }
+
+  /**
+   * The namespace URI of an element or attribute, which is empty for no namespace.
+   */
+  public String getNamespaceURI(int nodeId)
+  {
+    return nameCodes[nodeId] == NO_NODE ? null : namespaceURIs[nameCodes[nodeId]];
+  }
+
+  public String getQualifiedName(int nodeId)
+  {
+    String prefix = getNamespacePrefix(nodeId);
+
+    return prefix == null || prefix.isEmpty() ? getLocalName(nodeId) : prefix + ":" + getLocalName(nodeId);
+  }
+
+  /**
+   * The text of a text node or comment, the value of an attribute, or the data of a processing instruction.
+   */
+  public String getText(int nodeId)
+  {
+    return texts[nodeId];
+  }
+
+  /**
+   * The value a result is given for a node: an element's own text, trimmed, as {@link Element#getTextTrim()}
+   * returns it, or an attribute's value.
+   */
+  public String getValue(int nodeId) throws XMLQueryException
+  {
+    if (isAttribute(nodeId))
+      return texts[nodeId];
+    else if (!isElement(nodeId))
+      throw new XMLQueryException("unsupported node type " + getNodeKind(nodeId));
+
+    String text = null;
+    StringBuilder sb = null;
+
+    for (int child = getFirstChild(nodeId); child != NO_NODE; child = nextSiblings[child]) {
+      if (kinds[child] == NodeKind.TEXT.ordinal()) {
+        if (text == null)
+          text = texts[child];
+        else {
+          if (sb == null)
+            sb = new StringBuilder(text);
+          sb.append(texts[child]);
+        }
+      }
+    }
+    return sb != null ? sb.toString().trim() : text != null ? text.trim() : "";
+  }
+
+  /**
+   * The XPath string value of a node: for the document or an element, the text of all its descendants.
+   */
+  public String getStringValue(int nodeId)
+  {
+    int kind = kinds[nodeId];
+
+    if (kind != NodeKind.DOCUMENT.ordinal() && kind != NodeKind.ELEMENT.ordinal())
+      return texts[nodeId];
+
+    StringBuilder sb = new StringBuilder();
+    appendDescendantText(nodeId, sb);
+    return sb.toString();
+  }
+
+  /**
+   * The absolute location of an element or attribute, in the form {@link XPathLocationIndex} produces.
+   */
+  public String getAbsoluteXPathLocation(int nodeId) throws XMLQueryException
+  {
+    if (isElement(nodeId)) {
+      StringBuilder sb = new StringBuilder();
+      appendElementLocation(nodeId, sb);
+      return sb.toString();
+    } else if (isAttribute(nodeId)) {
+      StringBuilder sb = new StringBuilder();
+      appendElementLocation(parents[nodeId], sb);
+      return sb.append('@').append(getQualifiedName(nodeId)).toString();
+    } else
+      throw new XMLQueryException(
+        "only elements and attributes currently supported for absolute path construction");
+  }
+
+  /**
+   * The namespace URI bound to a prefix at a node, or null. Only the namespaces of element and attribute
+   * names and additional namespace declarations are known.
+   */
+  public String translateNamespacePrefixToUri(String prefix, int nodeId)
+  {
+    if (XML_NAMESPACE_PREFIX.equals(prefix))
+      return Namespace.XML_NAMESPACE.getURI();
+
+    for (int element = isElement(nodeId) ? nodeId : parents[nodeId]; element > DOCUMENT_NODE_ID;
+         element = parents[element]) {
+      if (prefix.equals(getNamespacePrefix(element)))
+        return getNamespaceURI(element);
+
+      for (int attribute = getFirstAttribute(element); attribute != NO_NODE; attribute = nextSiblings[attribute])
+        if (prefix.equals(getNamespacePrefix(attribute)) && !getNamespaceURI(attribute).isEmpty())
+          return getNamespaceURI(attribute);
+
+      String[] declarations = namespaceDeclarations.get(element);
+      if (declarations != null)
+        for (int i = 0; i < declarations.length; i += 2)
+          if (prefix.equals(declarations[i]))
+            return declarations[i + 1];
+    }
+    return null;
+  }
+
+  /**
+   * Return the node ID of a node from this document's results.
+   */
+  public static int getNodeId(Object node)
+  {
+    return ((Node)node).nodeId;
+  }
+
+  /**
+   * The canonical node object for a node ID, the same object every time.
+   */
+  public Node getNode(int nodeId)
+  {
+    Node node = nodes.get(nodeId);
+
+    if (node == null) {
+      nodes.compareAndSet(nodeId, null, new Node(nodeId));
+      node = nodes.get(nodeId);
+    }
+    return node;
+  }
+
+  CompactDocumentNavigator getNavigator()
+  {
+    return navigator;
+  }
+
+  private void appendDescendantText(int nodeId, StringBuilder sb)
+  {
+    for (int child = getFirstChild(nodeId); child != NO_NODE; child = nextSiblings[child]) {
+      if (kinds[child] == NodeKind.TEXT.ordinal())
+        sb.append(texts[child]);
+      else if (isElement(child))
+        appendDescendantText(child, sb);
+    }
+  }
+
+  private void appendElementLocation(int element, StringBuilder sb)
+  {
+    if (parents[element] == DOCUMENT_NODE_ID)
+      sb.append('/').append(getQualifiedName(element));
+    else {
+      appendElementLocation(parents[element], sb);
+      sb.append('/').append(getQualifiedName(element)).append('[').append(positions[element]).append(']');
+    }
+  }
+
+  @Override public String toString()
+  {
+    return "CompactDocument{" +
+      "nodeCount=" + kinds.length +
+      ", nameCount=" + localNames.length +
+      '}';
+  }
+
+  /**
+   * A node of a compact document as Jaxen and result values see it. Holds only the node ID, not the document.
+   */
+  public static final class Node
+  {
+    private final int nodeId;
+
+    private Node(int nodeId)
+    {
+      this.nodeId = nodeId;
+    }
+
+    public int getNodeId()
+    {
+      return nodeId;
+    }
+
+    @Override public String toString()
+    {
+      return "CompactDocument.Node{" + nodeId + '}';
+    }
+  }
+
+  /**
+   * Numbers the nodes of a JDOM document in document order, growing the arrays as it goes.
+   */
+  private static class Builder
+  {
+    private byte[] kinds = new byte[1024];
+    private int[] parents = new int[1024];
+    private int[] nextSiblings = new int[1024];
+    private int[] nameCodes = new int[1024];
+    private int[] positions = new int[1024];
+    private String[] texts = new String[1024];
+    private int nodeCount = 0;
+    private final Map<String, Integer> names = new HashMap<>();
+    private final List<String> localNames = new ArrayList<>();
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<String> namespaceURIs = new ArrayList<>();
+    private final Map<Integer, String[]> namespaceDeclarations = new HashMap<>();
+
+    public void addDocument(Document document)
+    {
+      int documentNode = addNode(NodeKind.DOCUMENT, NO_NODE, NO_NODE, null);
+
+      addContent(documentNode, document.getContent());
+    }
+
+    private void addElement(int parent, Element element, int position)
+    {
+      int elementNode = addNode(NodeKind.ELEMENT, parent,
+        getNameCode(element.getNamespacePrefix(), element.getNamespaceURI(), element.getName()), null);
+      int previousAttribute = NO_NODE;
+
+      positions[elementNode] = position;
+
+      List<?> additionalNamespaces = element.getAdditionalNamespaces();
+      if (!additionalNamespaces.isEmpty()) {
+        String[] declarations = new String[additionalNamespaces.size() * 2];
+        for (int i = 0; i < additionalNamespaces.size(); i++) {
+          Namespace namespace = (Namespace)additionalNamespaces.get(i);
+          declarations[i * 2] = namespace.getPrefix();
+          declarations[i * 2 + 1] = namespace.getURI();
+        }
+        namespaceDeclarations.put(elementNode, declarations);
+      }
+
+      for (Object attribute : element.getAttributes()) {
+        Attribute jdomAttribute = (Attribute)attribute;
+        int attributeNode = addNode(NodeKind.ATTRIBUTE, elementNode, getNameCode(jdomAttribute.getNamespacePrefix(),
+          jdomAttribute.getNamespaceURI(), jdomAttribute.getName()), jdomAttribute.getValue());
+
+        if (previousAttribute != NO_NODE)
+          nextSiblings[previousAttribute] = attributeNode;
+        previousAttribute = attributeNode;
+      }
+
+      addContent(elementNode, element.getContent());
+    }
+
+    private void addContent(int parent, List<?> content)
+    {
+      Map<String, int[]> positionsByName = new HashMap<>();
+      int previousChild = NO_NODE;
+
+      for (Object child : content) {
+        int childNode;
+
+        if (child instanceof Element) {
+          Element element = (Element)child;
+          int[] position = positionsByName.computeIfAbsent(element.getNamespaceURI() + "}" + element.getName(),
+            name -> new int[1]);
+
+          childNode = nodeCount;
+          addElement(parent, element, ++position[0]);
+        } else if (child instanceof Text) // Including CDATA sections
+          childNode = addNode(NodeKind.TEXT, parent, NO_NODE, ((Text)child).getText());
+        else if (child instanceof Comment)
+          childNode = addNode(NodeKind.COMMENT, parent, NO_NODE, ((Comment)child).getText());
+        else if (child instanceof ProcessingInstruction) {
+          ProcessingInstruction instruction = (ProcessingInstruction)child;
+          childNode = addNode(NodeKind.PROCESSING_INSTRUCTION, parent, getNameCode("", "", instruction.getTarget()),
+            instruction.getData());
+        } else
+          continue; // Entity references and document types are not copied
+
+        if (previousChild != NO_NODE)
+          nextSiblings[previousChild] = childNode;
+        previousChild = childNode;
+      }
+    }
+
+    private int addNode(NodeKind kind, int parent, int nameCode, String text)
+    {
+      if (nodeCount == kinds.length) {
+        int capacity = nodeCount * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        nameCodes = Arrays.copyOf(nameCodes, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        texts = Arrays.copyOf(texts, capacity);
+      }
+
+      kinds[nodeCount] = (byte)kind.ordinal();
+      parents[nodeCount] = parent;
+      nextSiblings[nodeCount] = NO_NODE;
+      nameCodes[nodeCount] = nameCode;
+      texts[nodeCount] = text;
+      return nodeCount++;
+    }
+
+    private int getNameCode(String prefix, String namespaceURI, String localName)
+    {
+      String name = prefix + '\u0000' + namespaceURI + '\u0000' + localName;
+      Integer nameCode = names.get(name);
+
+      if (nameCode == null) {
+        nameCode = localNames.size();
+        names.put(name, nameCode);
+        localNames.add(localName);
+        prefixes.add(prefix);
+        namespaceURIs.add(namespaceURI);
+      }
+      return nameCode;
+    }
+  }
+}
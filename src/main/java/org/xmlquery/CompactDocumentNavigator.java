@@ -0,0 +1,220 @@
+package org.xmlquery;
+
+import org.jaxen.BaseXPath;
+import org.jaxen.DefaultNavigator;
+import org.jaxen.JaxenConstants;
+import org.jaxen.JaxenException;
+import org.jaxen.XPath;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A Jaxen navigator over a {@link CompactDocument}, whose nodes are its canonical {@link CompactDocument.Node}s.
+ */
+class CompactDocumentNavigator extends DefaultNavigator
+{
+  private static final long serialVersionUID = 1L;
+
+  private final transient CompactDocument document;
+
+  CompactDocumentNavigator(CompactDocument document)
+  {
+    this.document = document;
+  }
+
+  @Override public Iterator<Object> getChildAxisIterator(Object contextNode)
+  {
+    return new SiblingIterator(document.getFirstChild(id(contextNode)));
+  }
+
+  @Override public Iterator<Object> getAttributeAxisIterator(Object contextNode)
+  {
+    return new SiblingIterator(document.getFirstAttribute(id(contextNode)));
+  }
+
+  /**
+   * Start from the next sibling rather than scanning the parent's children for the context node, which makes
+   * Jaxen's document order comparisons of siblings quadratic.
+   */
+  @Override @SuppressWarnings("unchecked") public Iterator<Object> getFollowingSiblingAxisIterator(Object contextNode)
+  {
+    int node = id(contextNode);
+
+    return document.isAttribute(node) ? JaxenConstants.EMPTY_ITERATOR :
+      new SiblingIterator(document.getNextSibling(node));
+  }
+
+  @Override @SuppressWarnings("unchecked") public Iterator<Object> getParentAxisIterator(Object contextNode)
+  {
+    Object parent = getParentNode(contextNode);
+
+    return parent == null ? JaxenConstants.EMPTY_ITERATOR : Collections.singletonList(parent).iterator();
+  }
+
+  @Override public Object getParentNode(Object contextNode)
+  {
+    int parent = document.getParent(id(contextNode));
+
+    return parent == CompactDocument.NO_NODE ? null : document.getNode(parent);
+  }
+
+  @Override public Object getDocumentNode(Object contextNode)
+  {
+    return document.getNode(CompactDocument.DOCUMENT_NODE_ID);
+  }
+
+  @Override public String translateNamespacePrefixToUri(String prefix, Object element)
+  {
+    return document.translateNamespacePrefixToUri(prefix, id(element));
+  }
+
+  @Override public String getElementNamespaceUri(Object element)
+  {
+    return document.getNamespaceURI(id(element));
+  }
+
+  @Override public String getElementName(Object element)
+  {
+    return document.getLocalName(id(element));
+  }
+
+  @Override public String getElementQName(Object element)
+  {
+    return document.getQualifiedName(id(element));
+  }
+
+  @Override public String getAttributeNamespaceUri(Object attribute)
+  {
+    return document.getNamespaceURI(id(attribute));
+  }
+
+  @Override public String getAttributeName(Object attribute)
+  {
+    return document.getLocalName(id(attribute));
+  }
+
+  @Override public String getAttributeQName(Object attribute)
+  {
+    return document.getQualifiedName(id(attribute));
+  }
+
+  @Override public String getProcessingInstructionTarget(Object instruction)
+  {
+    return document.getLocalName(id(instruction));
+  }
+
+  @Override public String getProcessingInstructionData(Object instruction)
+  {
+    return document.getText(id(instruction));
+  }
+
+  @Override public boolean isDocument(Object object)
+  {
+    return isNodeOfKind(object, CompactDocument.NodeKind.DOCUMENT);
+  }
+
+  @Override public boolean isElement(Object object)
+  {
+    return isNodeOfKind(object, CompactDocument.NodeKind.ELEMENT);
+  }
+
+  @Override public boolean isAttribute(Object object)
+  {
+    return isNodeOfKind(object, CompactDocument.NodeKind.ATTRIBUTE);
+  }
+
+  @Override public boolean isNamespace(Object object)
+  {
+    return false;
+  }
+
+  @Override public boolean isComment(Object object)
+  {
+    return isNodeOfKind(object, CompactDocument.NodeKind.COMMENT);
+  }
+
+  @Override public boolean isText(Object object)
+  {
+    return isNodeOfKind(object, CompactDocument.NodeKind.TEXT);
+  }
+
+  @Override public boolean isProcessingInstruction(Object object)
+  {
+    return isNodeOfKind(object, CompactDocument.NodeKind.PROCESSING_INSTRUCTION);
+  }
+
+  @Override public String getCommentStringValue(Object comment)
+  {
+    return document.getText(id(comment));
+  }
+
+  @Override public String getElementStringValue(Object element)
+  {
+    return document.getStringValue(id(element));
+  }
+
+  @Override public String getAttributeStringValue(Object attribute)
+  {
+    return document.getText(id(attribute));
+  }
+
+  @Override public String getNamespaceStringValue(Object namespace)
+  {
+    return null;
+  }
+
+  @Override public String getTextStringValue(Object text)
+  {
+    return document.getText(id(text));
+  }
+
+  @Override public String getNamespacePrefix(Object namespace)
+  {
+    return null;
+  }
+
+  @Override public XPath parseXPath(String xPathExpression) throws JaxenException
+  {
+    return new BaseXPath(xPathExpression, this);
+  }
+
+  private boolean isNodeOfKind(Object object, CompactDocument.NodeKind kind)
+  {
+    return object instanceof CompactDocument.Node && document.getNodeKind(id(object)) == kind;
+  }
+
+  private static int id(Object node)
+  {
+    return CompactDocument.getNodeId(node);
+  }
+
+  /**
+   * Iterates over a node and its following siblings.
+   */
+  private class SiblingIterator implements Iterator<Object>
+  {
+    private int nextNode;
+
+    public SiblingIterator(int firstNode)
+    {
+      this.nextNode = firstNode;
+    }
+
+    @Override public boolean hasNext()
+    {
+      return nextNode != CompactDocument.NO_NODE;
+    }
+
+    @Override public Object next()
+    {
+      if (nextNode == CompactDocument.NO_NODE)
+        throw new NoSuchElementException();
+
+      Object node = document.getNode(nextNode);
+      nextNode = document.getNextSibling(nextNode);
+      return node;
+    }
+  }
+}
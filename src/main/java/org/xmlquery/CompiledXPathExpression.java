@@ -0,0 +1,252 @@
+package org.xmlquery;
+
+import org.jaxen.Context;
+import org.jaxen.ContextSupport;
+import org.jaxen.JaxenException;
+import org.jaxen.NamespaceContext;
+import org.jaxen.SimpleVariableContext;
+import org.jaxen.XPathFunctionContext;
+import org.jaxen.expr.Expr;
+import org.jaxen.expr.LocationPath;
+import org.jaxen.expr.PathExpr;
+import org.jaxen.expr.UnionExpr;
+import org.jaxen.jdom.DocumentNavigator;
+import org.jaxen.jdom.JDOMXPath;
+import org.jdom.Attribute;
+import org.jdom.Content;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A parsed XPath expression together with the namespace context it was compiled against. Instances are
+ * immutable and may be shared between threads; they are normally obtained from an {@link XPathExpressionCache}.
+ * <p>
+ * Unlike JDOM's {@link org.jdom.xpath.XPath} wrapper, which records the current context node in a field
+ * during selection, no per-call state is kept here. Prefixes that are not bound explicitly are resolved
+ * against the namespaces in scope at the context node, as JDOM does.
+ *
+ * @see XPathExpressionCache
+ */
+public class CompiledXPathExpression
+{
+  private final String xPathExpression;
+  private final Map<String, String> namespaces;
+  private final JDOMXPath xPath;
+  private final ContextSupport contextSupport;
+  private final boolean mayContainPrefixes;
+  private final boolean isContextFree;
+  private final SimpleLocationPathEvaluator simplePathEvaluator;
+
+  CompiledXPathExpression(String xPathExpression, Map<String, String> namespaces) throws XMLQueryException
+  {
+    this.xPathExpression = xPathExpression;
+    this.namespaces = Collections.unmodifiableMap(new TreeMap<>(namespaces));
+    this.mayContainPrefixes = xPathExpression.indexOf(':') != -1;
+
+    try {
+      this.xPath = new JDOMXPath(xPathExpression);
+    } catch (JaxenException e) {
+      throw new XMLQueryException("JDOM exception processing " + xPathExpression + ": " + e.getMessage(), e);
+    }
+    this.contextSupport = createContextSupport(new ExplicitNamespaceContext(this.namespaces));
+    this.isContextFree = isContextFree(xPath.getRootExpr());
+    this.simplePathEvaluator = SimpleLocationPathEvaluator.create(xPathExpression);
+  }
+
+  public String getXPathExpression()
+  {
+    return xPathExpression;
+  }
+
+  public Map<String, String> getNamespaces()
+  {
+    return namespaces;
+  }
+
+  /**
+   * Whether this expression selects the same nodes from every context node in a document, as absolute location
+   * paths and unions of them do.
+   */
+  public boolean isContextFree()
+  {
+    return isContextFree;
+  }
+
+  /**
+   * Evaluate this expression against a JDOM context node (a document, element or attribute). The returned
+   * list is newly created for each call and may be modified by the caller.
+   * <p>
+   * Simple location paths such as {@code name}, {@code @id} or {@code //item[@type='book']/price} are
+   * evaluated by walking the tree directly rather than through Jaxen.
+   */
+  @SuppressWarnings("unchecked") public List<Object> selectNodes(Object context) throws XMLQueryException
+  {
+    if (simplePathEvaluator != null) {
+      List<Object> nodes = simplePathEvaluator.selectNodes(context);
+      if (nodes != null)
+        return nodes;
+    }
+
+    try {
+      return (List<Object>)xPath.selectNodes(createContext(context));
+    } catch (JaxenException e) {
+      throw new XMLQueryException("JDOM exception processing " + xPathExpression + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Evaluate this expression against a node of a {@link CompactDocument}. The selected nodes are
+   * {@link CompactDocument.Node}s, in a newly created list.
+   */
+  @SuppressWarnings("unchecked") public List<Object> selectNodes(CompactDocument document, Object context)
+    throws XMLQueryException
+  {
+    CompactDocument.Node node = document.getNode(CompactDocument.getNodeId(context));
+
+    if (simplePathEvaluator != null) {
+      List<Object> nodes = simplePathEvaluator.selectNodes(document, node.getNodeId());
+      if (nodes != null)
+        return nodes;
+    }
+
+    NamespaceContext namespaceContext = mayContainPrefixes ?
+      new CompactNamespaceContext(namespaces, document, node) : contextSupport.getNamespaceContext();
+    Context xPathContext = new Context(new ContextSupport(namespaceContext, XPathFunctionContext.getInstance(),
+      contextSupport.getVariableContext(), document.getNavigator()));
+
+    xPathContext.setNodeSet(Collections.singletonList(node));
+
+    try {
+      return (List<Object>)xPath.selectNodes(xPathContext);
+    } catch (JaxenException e) {
+      throw new XMLQueryException("Jaxen exception processing " + xPathExpression + ": " + e.getMessage(), e);
+    }
+  }
+
+  private Context createContext(Object node)
+  {
+    ContextSupport support = mayContainPrefixes ?
+      createContextSupport(new InScopeNamespaceContext(namespaces, node)) :
+      contextSupport;
+    Context context = new Context(support);
+
+    context.setNodeSet(Collections.singletonList(node));
+
+    return context;
+  }
+
+  private static boolean isContextFree(Expr expr)
+  {
+    if (expr instanceof LocationPath)
+      return ((LocationPath)expr).isAbsolute();
+    else if (expr instanceof PathExpr) {
+      PathExpr pathExpr = (PathExpr)expr;
+      return pathExpr.getFilterExpr() == null && pathExpr.getLocationPath() != null &&
+        isContextFree(pathExpr.getLocationPath());
+    } else if (expr instanceof UnionExpr) {
+      UnionExpr unionExpr = (UnionExpr)expr;
+      return isContextFree(unionExpr.getLHS()) && isContextFree(unionExpr.getRHS());
+    } else
+      return false;
+  }
+
+  private static ContextSupport createContextSupport(NamespaceContext namespaceContext)
+  {
+    return new ContextSupport(namespaceContext, XPathFunctionContext.getInstance(), new SimpleVariableContext(),
+      DocumentNavigator.getInstance());
+  }
+
+  @Override public String toString()
+  {
+    return "CompiledXPathExpression{" +
+      "xPathExpression='" + xPathExpression + '\'' +
+      ", namespaces=" + namespaces +
+      '}';
+  }
+
+  private static class ExplicitNamespaceContext implements NamespaceContext
+  {
+    private final Map<String, String> namespaces;
+
+    public ExplicitNamespaceContext(Map<String, String> namespaces)
+    {
+      this.namespaces = namespaces;
+    }
+
+    @Override public String translateNamespacePrefixToUri(String prefix)
+    {
+      return namespaces.get(prefix);
+    }
+  }
+
+  private static class CompactNamespaceContext extends ExplicitNamespaceContext
+  {
+    private final CompactDocument document;
+    private final CompactDocument.Node node;
+
+    public CompactNamespaceContext(Map<String, String> namespaces, CompactDocument document,
+      CompactDocument.Node node)
+    {
+      super(namespaces);
+      this.document = document;
+      this.node = node;
+    }
+
+    @Override public String translateNamespacePrefixToUri(String prefix)
+    {
+      String uri = super.translateNamespacePrefixToUri(prefix);
+
+      if (uri == null) {
+        int nodeId = node.getNodeId();
+
+        if (nodeId == CompactDocument.DOCUMENT_NODE_ID)
+          nodeId = document.getRootElement();
+        if (nodeId != CompactDocument.NO_NODE)
+          uri = document.translateNamespacePrefixToUri(prefix, nodeId);
+      }
+      return uri;
+    }
+  }
+
+  private static class InScopeNamespaceContext extends ExplicitNamespaceContext
+  {
+    private final Object node;
+
+    public InScopeNamespaceContext(Map<String, String> namespaces, Object node)
+    {
+      super(namespaces);
+      this.node = node;
+    }
+
+    @Override public String translateNamespacePrefixToUri(String prefix)
+    {
+      String uri = super.translateNamespacePrefixToUri(prefix);
+
+      if (uri == null) {
+        Element element = null;
+
+        if (node instanceof Element)
+          element = (Element)node;
+        else if (node instanceof Attribute)
+          element = ((Attribute)node).getParent();
+        else if (node instanceof Content)
+          element = ((Content)node).getParentElement();
+        else if (node instanceof Document)
+          element = ((Document)node).getRootElement();
+
+        if (element != null) {
+          Namespace namespace = element.getNamespace(prefix);
+          if (namespace != null)
+            uri = namespace.getURI();
+        }
+      }
+      return uri;
+    }
+  }
+}
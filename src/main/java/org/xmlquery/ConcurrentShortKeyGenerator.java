@@ -0,0 +1,55 @@
+package org.xmlquery;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe generator of short numeric keys. Values are held in one concurrent map per source URI, so no
+ * compound lookup string is built, and a key string is created only once per distinct value. Looking up an
+ * existing key does not lock.
+ * <p>
+ * Keys are dense and unique, but when several threads see new values at the same time the order in which
+ * they are numbered depends on scheduling.
+ */
+public class ConcurrentShortKeyGenerator implements XPathKeyGenerator
+{
+  private final ConcurrentMap<String, ConcurrentMap<String, String>> keyMap;
+  private final AtomicLong currentKey;
+
+  public ConcurrentShortKeyGenerator()
+  {
+    keyMap = new ConcurrentHashMap<>();
+    currentKey = new AtomicLong();
+  }
+
+  @Override public String getKey(String uri, String value) throws XMLQueryException
+  {
+    ConcurrentMap<String, String> uriKeyMap = getURIKeyMap(String.valueOf(uri));
+    String nonNullValue = String.valueOf(value);
+    String key = uriKeyMap.get(nonNullValue);
+
+    if (key != null)
+      return key;
+    else {
+      if (currentKey.get() == Long.MAX_VALUE)
+        throw new XMLQueryException("maximum number of keys generated");
+      return uriKeyMap.computeIfAbsent(nonNullValue, v -> Long.toString(currentKey.incrementAndGet()));
+    }
+  }
+
+  @Override public long size()
+  {
+    return currentKey.get();
+  }
+
+  private ConcurrentMap<String, String> getURIKeyMap(String uri)
+  {
+    ConcurrentMap<String, String> uriKeyMap = keyMap.get(uri);
+
+    if (uriKeyMap == null)
+      uriKeyMap = keyMap.computeIfAbsent(uri, u -> new ConcurrentHashMap<>());
+
+    return uriKeyMap;
+  }
+}
@@ -0,0 +1,55 @@
+package org.xmlquery;
+
+/**
+ * Generates keys from a 64-bit hash of the source URI and value. Nothing is stored, so the generator is
+ * thread-safe without any contention and the same pair receives the same key in every process and run. In
+ * exchange keys are longer than those of the short generators and distinct pairs may, with very small
+ * probability, share a key.
+ */
+public class HashKeyGenerator implements XPathKeyGenerator
+{
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  @Override public String getKey(String uri, String value)
+  {
+    String nonNullURI = String.valueOf(uri);
+    long hash = FNV_OFFSET_BASIS;
+
+    hash = hash(hash, (char)(nonNullURI.length() >>> 16)); // Length prefix keeps the URI/value split unambiguous
+    hash = hash(hash, (char)nonNullURI.length());
+    hash = hash(hash, nonNullURI);
+    hash = hash(hash, String.valueOf(value));
+
+    return Long.toHexString(mix(hash));
+  }
+
+  @Override public long size()
+  {
+    return 0;
+  }
+
+  private static long hash(long hash, String s)
+  {
+    for (int i = 0; i < s.length(); i++)
+      hash = hash(hash, s.charAt(i));
+
+    return hash;
+  }
+
+  private static long hash(long hash, char c)
+  {
+    hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+    return (hash ^ (c >>> 8)) * FNV_PRIME;
+  }
+
+  private static long mix(long hash) // MurmurHash3 finalizer to spread the FNV bits
+  {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
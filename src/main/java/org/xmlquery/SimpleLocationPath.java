@@ -0,0 +1,301 @@
+package org.xmlquery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed XPath location path restricted to child and descendant element steps, an optional final attribute
+ * step, and attribute existence or equality predicates, for example {@code /catalog//item[@type='book']/@id}.
+ * Name tests are unprefixed names or {@code *}; as in XPath, an unprefixed name only matches nodes in no
+ * namespace. Paths of this form can be evaluated without the general XPath machinery.
+ */
+class SimpleLocationPath
+{
+  enum Axis
+  {
+    CHILD, DESCENDANT, ATTRIBUTE
+  }
+
+  private final String xPathExpression;
+  private final boolean isAbsolute;
+  private final List<Step> steps;
+
+  private SimpleLocationPath(String xPathExpression, boolean isAbsolute, List<Step> steps)
+  {
+    this.xPathExpression = xPathExpression;
+    this.isAbsolute = isAbsolute;
+    this.steps = Collections.unmodifiableList(steps);
+  }
+
+  /**
+   * Parse an expression, returning null if it is not a simple location path.
+   */
+  public static SimpleLocationPath parse(String xPathExpression)
+  {
+    return new Parser(xPathExpression.trim()).parse();
+  }
+
+  public String getXPathExpression()
+  {
+    return xPathExpression;
+  }
+
+  public boolean isAbsolute()
+  {
+    return isAbsolute;
+  }
+
+  public List<Step> getSteps()
+  {
+    return steps;
+  }
+
+  public boolean endsWithAttributeStep()
+  {
+    return steps.get(steps.size() - 1).getAxis() == Axis.ATTRIBUTE;
+  }
+
+  @Override public String toString()
+  {
+    return "SimpleLocationPath{" +
+      "xPathExpression='" + xPathExpression + '\'' +
+      ", isAbsolute=" + isAbsolute +
+      ", steps=" + steps +
+      '}';
+  }
+
+  static class Step
+  {
+    private final Axis axis;
+    private final String name;
+    private final List<AttributePredicate> predicates;
+
+    Step(Axis axis, String name, List<AttributePredicate> predicates)
+    {
+      this.axis = axis;
+      this.name = name;
+      this.predicates = Collections.unmodifiableList(predicates);
+    }
+
+    public Axis getAxis()
+    {
+      return axis;
+    }
+
+    /**
+     * The local name to match, or null for the {@code *} name test.
+     */
+    public String getName()
+    {
+      return name;
+    }
+
+    public boolean isWildcard()
+    {
+      return name == null;
+    }
+
+    public List<AttributePredicate> getPredicates()
+    {
+      return predicates;
+    }
+
+    /**
+     * Test an element or attribute name against this step's name test.
+     */
+    public boolean matchesName(String namespaceURI, String localName)
+    {
+      if (name == null)
+        return true;
+      else
+        return (namespaceURI == null || namespaceURI.isEmpty()) && name.equals(localName);
+    }
+
+    @Override public String toString()
+    {
+      return axis + "::" + (name == null ? "*" : name) + predicates;
+    }
+  }
+
+  /**
+   * A predicate of the form {@code [@name]} or {@code [@name='value']}.
+   */
+  static class AttributePredicate
+  {
+    private final String attributeName;
+    private final String attributeValue;
+
+    AttributePredicate(String attributeName, String attributeValue)
+    {
+      this.attributeName = attributeName;
+      this.attributeValue = attributeValue;
+    }
+
+    public String getAttributeName()
+    {
+      return attributeName;
+    }
+
+    /**
+     * The value the attribute must have, or null if the attribute only has to be present.
+     */
+    public String getAttributeValue()
+    {
+      return attributeValue;
+    }
+
+    /**
+     * Test the value of the named attribute, which is null if the element does not have it.
+     */
+    public boolean matches(String actualValue)
+    {
+      return actualValue != null && (attributeValue == null || attributeValue.equals(actualValue));
+    }
+
+    @Override public String toString()
+    {
+      return "[@" + attributeName + (attributeValue == null ? "" : "='" + attributeValue + "'") + "]";
+    }
+  }
+
+  private static class Parser
+  {
+    private final String expression;
+    private int position;
+
+    public Parser(String expression)
+    {
+      this.expression = expression;
+      this.position = 0;
+    }
+
+    public SimpleLocationPath parse()
+    {
+      List<Step> steps = new ArrayList<>();
+      boolean isAbsolute = false;
+      Axis axis = Axis.CHILD;
+
+      if (consume("//")) {
+        isAbsolute = true;
+        axis = Axis.DESCENDANT;
+      } else if (consume("/"))
+        isAbsolute = true;
+      else if (consume(".//"))
+        axis = Axis.DESCENDANT;
+      else
+        consume("./");
+
+      while (true) {
+        Step step = parseStep(axis);
+
+        if (step == null)
+          return null;
+        steps.add(step);
+
+        if (atEnd())
+          return new SimpleLocationPath(expression, isAbsolute, steps);
+        else if (step.getAxis() == Axis.ATTRIBUTE)
+          return null; // Attribute steps must come last
+        else if (consume("//"))
+          axis = Axis.DESCENDANT;
+        else if (consume("/"))
+          axis = Axis.CHILD;
+        else
+          return null;
+      }
+    }
+
+    private Step parseStep(Axis axis)
+    {
+      List<AttributePredicate> predicates = new ArrayList<>();
+      String name;
+
+      if (consume("@")) {
+        if (axis == Axis.DESCENDANT)
+          return null; // Would include the context element's own attributes
+        axis = Axis.ATTRIBUTE;
+      }
+
+      if (consume("*"))
+        name = null;
+      else if ((name = parseName()) == null)
+        return null;
+
+      while (consume("[")) {
+        AttributePredicate predicate = parseAttributePredicate();
+        if (predicate == null)
+          return null;
+        predicates.add(predicate);
+      }
+
+      if (axis == Axis.ATTRIBUTE && !predicates.isEmpty())
+        return null;
+
+      return new Step(axis, name, predicates);
+    }
+
+    private AttributePredicate parseAttributePredicate()
+    {
+      String attributeName, attributeValue = null;
+
+      if (!consume("@") || (attributeName = parseName()) == null)
+        return null;
+
+      if (consume("=")) {
+        if (atEnd())
+          return null;
+
+        char quote = expression.charAt(position);
+        int closingQuote = expression.indexOf(quote, position + 1);
+
+        if ((quote != '\'' && quote != '"') || closingQuote == -1)
+          return null;
+
+        attributeValue = expression.substring(position + 1, closingQuote);
+        position = closingQuote + 1;
+      }
+      return consume("]") ? new AttributePredicate(attributeName, attributeValue) : null;
+    }
+
+    private String parseName()
+    {
+      int start = position;
+
+      if (atEnd() || !isNameStartChar(expression.charAt(position)))
+        return null;
+
+      while (!atEnd() && isNameChar(expression.charAt(position)))
+        position++;
+
+      if (!atEnd() && (expression.charAt(position) == ':' || expression.charAt(position) == '('))
+        return null; // Prefixed names, axes and node tests are not simple
+
+      return expression.substring(start, position);
+    }
+
+    private boolean consume(String token)
+    {
+      if (expression.startsWith(token, position)) {
+        position += token.length();
+        return true;
+      } else
+        return false;
+    }
+
+    private boolean atEnd()
+    {
+      return position == expression.length();
+    }
+
+    private static boolean isNameStartChar(char c)
+    {
+      return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isNameChar(char c)
+    {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+    }
+  }
+}
@@ -0,0 +1,414 @@
+package org.xmlquery;
+
+import org.jdom.Attribute;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Evaluates a {@link SimpleLocationPath} directly against a JDOM tree with {@link Element#getChildren(String,
+ * Namespace)} and {@link Element#getAttribute(String)}, selecting the same nodes in the same document order as
+ * Jaxen would.
+ * <p>
+ * Child steps applied to nodes that do not contain one another keep the nodes in document order without any
+ * sorting, so paths are limited to at most one descendant step. The child steps after a descendant step are
+ * matched by walking up from each descendant rather than down from each match of the descendant step, which
+ * could visit nested matches out of order.
+ * <p>
+ * If the document has an {@link XPathElementIndex}, a descendant step evaluated from the document takes its
+ * candidates from the index rather than walking the tree.
+ * <p>
+ * Paths are evaluated against {@link CompactDocument}s in the same way, walking its arrays instead of the tree.
+ *
+ * @see CompiledXPathExpression#selectNodes(Object)
+ */
+class SimpleLocationPathEvaluator
+{
+  private final SimpleLocationPath path;
+  private final List<SimpleLocationPath.Step> leadingChildSteps;
+  private final SimpleLocationPath.Step descendantStep;
+  private final List<SimpleLocationPath.Step> trailingChildSteps;
+  private final SimpleLocationPath.Step attributeStep;
+
+  private SimpleLocationPathEvaluator(SimpleLocationPath path)
+  {
+    List<SimpleLocationPath.Step> leadingChildSteps = new ArrayList<>();
+    List<SimpleLocationPath.Step> trailingChildSteps = new ArrayList<>();
+    SimpleLocationPath.Step descendantStep = null, attributeStep = null;
+
+    for (SimpleLocationPath.Step step : path.getSteps()) {
+      if (step.getAxis() == SimpleLocationPath.Axis.ATTRIBUTE)
+        attributeStep = step;
+      else if (step.getAxis() == SimpleLocationPath.Axis.DESCENDANT)
+        descendantStep = step;
+      else if (descendantStep == null)
+        leadingChildSteps.add(step);
+      else
+        trailingChildSteps.add(step);
+    }
+
+    this.path = path;
+    this.leadingChildSteps = leadingChildSteps;
+    this.descendantStep = descendantStep;
+    this.trailingChildSteps = trailingChildSteps;
+    this.attributeStep = attributeStep;
+  }
+
+  /**
+   * Create an evaluator for an expression, returning null if the expression needs the general XPath machinery.
+   */
+  public static SimpleLocationPathEvaluator create(String xPathExpression)
+  {
+    SimpleLocationPath path = SimpleLocationPath.parse(xPathExpression);
+
+    if (path == null)
+      return null;
+
+    int descendantStepCount = 0;
+    for (SimpleLocationPath.Step step : path.getSteps())
+      if (step.getAxis() == SimpleLocationPath.Axis.DESCENDANT)
+        descendantStepCount++;
+
+    return descendantStepCount <= 1 ? new SimpleLocationPathEvaluator(path) : null;
+  }
+
+  public SimpleLocationPath getPath()
+  {
+    return path;
+  }
+
+  /**
+   * Select the nodes matched from a context node in document order, or return null if the context is one this
+   * evaluator does not handle. The returned list is newly created.
+   */
+  public List<Object> selectNodes(Object context)
+  {
+    if (path.isAbsolute())
+      context = getDocument(context);
+
+    if (!(context instanceof Document || context instanceof Element || context instanceof Attribute))
+      return null;
+
+    List<Object> nodes = new ArrayList<>();
+    nodes.add(context);
+
+    for (SimpleLocationPath.Step step : leadingChildSteps)
+      nodes = selectChildren(nodes, step);
+
+    if (descendantStep != null) {
+      XPathElementIndex elementIndex = leadingChildSteps.isEmpty() && context instanceof Document ?
+        XPathElementIndex.getXPathElementIndex((Document)context) : null;
+
+      nodes = elementIndex != null ? selectIndexedDescendants(elementIndex) : selectDescendants(nodes);
+    }
+
+    if (attributeStep != null)
+      nodes = selectAttributes(nodes);
+
+    return nodes;
+  }
+
+  /**
+   * Select the nodes matched from a node of a compact document, as {@link #selectNodes(Object)} does for a JDOM
+   * node, returning null if the context is one this evaluator does not handle.
+   */
+  public List<Object> selectNodes(CompactDocument document, int context)
+  {
+    if (path.isAbsolute())
+      context = CompactDocument.DOCUMENT_NODE_ID;
+
+    CompactDocument.NodeKind kind = document.getNodeKind(context);
+    if (kind != CompactDocument.NodeKind.DOCUMENT && kind != CompactDocument.NodeKind.ELEMENT &&
+      kind != CompactDocument.NodeKind.ATTRIBUTE)
+      return null;
+
+    List<Object> nodes = new ArrayList<>();
+    nodes.add(document.getNode(context));
+
+    for (SimpleLocationPath.Step step : leadingChildSteps)
+      nodes = selectChildren(document, nodes, step);
+
+    if (descendantStep != null) {
+      List<Object> descendants = new ArrayList<>();
+
+      for (Object node : nodes)
+        for (int child = document.getFirstChild(CompactDocument.getNodeId(node)); child != CompactDocument.NO_NODE;
+             child = document.getNextSibling(child))
+          if (document.isElement(child))
+            addMatchingDescendants(document, child, 1, descendants);
+      nodes = descendants;
+    }
+
+    if (attributeStep != null)
+      nodes = selectAttributes(document, nodes);
+
+    return nodes;
+  }
+
+  private List<Object> selectChildren(List<Object> contexts, SimpleLocationPath.Step step)
+  {
+    List<Object> children = new ArrayList<>();
+
+    for (Object context : contexts) {
+      if (context instanceof Document) {
+        Document document = (Document)context;
+        if (document.hasRootElement() && matches(document.getRootElement(), step))
+          children.add(document.getRootElement());
+      } else if (context instanceof Element) {
+        Element element = (Element)context;
+        List<?> candidates = step.isWildcard() ? element.getChildren() :
+          element.getChildren(step.getName(), Namespace.NO_NAMESPACE);
+
+        for (Object candidate : candidates)
+          if (matchesPredicates((Element)candidate, step))
+            children.add(candidate);
+      }
+    }
+    return children;
+  }
+
+  private List<Object> selectDescendants(List<Object> contexts)
+  {
+    List<Object> descendants = new ArrayList<>();
+
+    for (Object context : contexts) {
+      if (context instanceof Document) {
+        Document document = (Document)context;
+        if (document.hasRootElement())
+          addMatchingDescendants(document.getRootElement(), 1, descendants);
+      } else if (context instanceof Element) {
+        for (Object child : ((Element)context).getChildren())
+          addMatchingDescendants((Element)child, 1, descendants);
+      }
+    }
+    return descendants;
+  }
+
+  /**
+   * Add an element and its descendants, in document order, if they match the descendant step followed by the
+   * trailing child steps.
+   *
+   * @param depth the depth of the element below the context node
+   */
+  private void addMatchingDescendants(Element element, int depth, List<Object> descendants)
+  {
+    if (depth > trailingChildSteps.size() && matchesStepsUpwards(element, trailingChildSteps.size()))
+      descendants.add(element);
+
+    for (Object child : element.getChildren())
+      addMatchingDescendants((Element)child, depth + 1, descendants);
+  }
+
+  /**
+   * Select the elements of the document that match the descendant step followed by the trailing child steps.
+   * The matches of the last step with an indexed attribute value, or else of the last step, are looked up in the
+   * index and checked against the steps above them by walking up. Any child steps below them are then applied
+   * downwards, which keeps document order as long as none of those matches contains another.
+   */
+  private List<Object> selectIndexedDescendants(XPathElementIndex elementIndex)
+  {
+    int lastStep = trailingChildSteps.size(), anchorStep = lastStep;
+
+    while (anchorStep >= 0 && getIndexedPredicate(elementIndex, getDescendantStep(anchorStep)) == null)
+      anchorStep--;
+
+    List<Object> nodes = anchorStep >= 0 ? selectIndexedAnchors(elementIndex, anchorStep) : null;
+
+    if (nodes == null || (anchorStep < lastStep && containsNestedElements(nodes)))
+      return selectIndexedAnchors(elementIndex, lastStep);
+
+    for (int step = anchorStep + 1; step <= lastStep; step++)
+      nodes = selectChildren(nodes, getDescendantStep(step));
+
+    return nodes;
+  }
+
+  /**
+   * Select the indexed elements that match a step and the steps above it back to the descendant step.
+   *
+   * @param step 0 for the descendant step, or 1 plus the index of a trailing child step
+   */
+  private List<Object> selectIndexedAnchors(XPathElementIndex elementIndex, int step)
+  {
+    SimpleLocationPath.Step anchorStep = getDescendantStep(step);
+    SimpleLocationPath.AttributePredicate predicate = getIndexedPredicate(elementIndex, anchorStep);
+    List<Element> candidates = predicate != null ?
+      elementIndex.getElementsByAttributeValue(predicate.getAttributeName(), predicate.getAttributeValue()) :
+      anchorStep.isWildcard() ? elementIndex.getElements() : elementIndex.getElements(anchorStep.getName());
+    List<Object> anchors = new ArrayList<>();
+
+    for (Element candidate : candidates)
+      if (matchesStepsUpwards(candidate, step))
+        anchors.add(candidate);
+
+    return anchors;
+  }
+
+  private static SimpleLocationPath.AttributePredicate getIndexedPredicate(XPathElementIndex elementIndex,
+    SimpleLocationPath.Step step)
+  {
+    for (SimpleLocationPath.AttributePredicate predicate : step.getPredicates())
+      if (predicate.getAttributeValue() != null && elementIndex.isIndexedAttribute(predicate.getAttributeName()))
+        return predicate;
+    return null;
+  }
+
+  private static boolean containsNestedElements(List<Object> elements)
+  {
+    Set<Object> elementSet = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    elementSet.addAll(elements);
+    for (Object element : elements)
+      for (Element ancestor = ((Element)element).getParentElement(); ancestor != null;
+           ancestor = ancestor.getParentElement())
+        if (elementSet.contains(ancestor))
+          return true;
+    return false;
+  }
+
+  /**
+   * The descendant step, or a trailing child step if {@code step} is positive.
+   */
+  private SimpleLocationPath.Step getDescendantStep(int step)
+  {
+    return step == 0 ? descendantStep : trailingChildSteps.get(step - 1);
+  }
+
+  /**
+   * Test whether an element matches a step, its parent the step before, and so on back to the descendant step.
+   *
+   * @param step 0 for the descendant step, or 1 plus the index of a trailing child step
+   */
+  private boolean matchesStepsUpwards(Element element, int step)
+  {
+    for (int i = step; i > 0; i--) {
+      if (!matches(element, getDescendantStep(i)))
+        return false;
+      element = element.getParentElement();
+      if (element == null)
+        return false;
+    }
+    return matches(element, descendantStep);
+  }
+
+  private List<Object> selectChildren(CompactDocument document, List<Object> contexts, SimpleLocationPath.Step step)
+  {
+    List<Object> children = new ArrayList<>();
+
+    for (Object context : contexts)
+      for (int child = document.getFirstChild(CompactDocument.getNodeId(context)); child != CompactDocument.NO_NODE;
+           child = document.getNextSibling(child))
+        if (document.isElement(child) && matches(document, child, step))
+          children.add(document.getNode(child));
+
+    return children;
+  }
+
+  private void addMatchingDescendants(CompactDocument document, int element, int depth, List<Object> descendants)
+  {
+    if (depth > trailingChildSteps.size() && matchesStepsUpwards(document, element, trailingChildSteps.size()))
+      descendants.add(document.getNode(element));
+
+    for (int child = document.getFirstChild(element); child != CompactDocument.NO_NODE;
+         child = document.getNextSibling(child))
+      if (document.isElement(child))
+        addMatchingDescendants(document, child, depth + 1, descendants);
+  }
+
+  private boolean matchesStepsUpwards(CompactDocument document, int element, int step)
+  {
+    for (int i = step; i > 0; i--) {
+      if (!matches(document, element, getDescendantStep(i)))
+        return false;
+      element = document.getParent(element);
+      if (!document.isElement(element))
+        return false;
+    }
+    return matches(document, element, descendantStep);
+  }
+
+  private List<Object> selectAttributes(CompactDocument document, List<Object> contexts)
+  {
+    List<Object> attributes = new ArrayList<>();
+
+    for (Object context : contexts)
+      for (int attribute = document.getFirstAttribute(CompactDocument.getNodeId(context));
+           attribute != CompactDocument.NO_NODE; attribute = document.getNextSibling(attribute))
+        if (attributeStep.isWildcard() || (attributeStep.getName().equals(document.getLocalName(attribute)) &&
+          document.getNamespaceURI(attribute).isEmpty()))
+          attributes.add(document.getNode(attribute));
+
+    return attributes;
+  }
+
+  private static boolean matches(CompactDocument document, int element, SimpleLocationPath.Step step)
+  {
+    if (!step.matchesName(document.getNamespaceURI(element), document.getLocalName(element)))
+      return false;
+
+    for (SimpleLocationPath.AttributePredicate predicate : step.getPredicates())
+      if (!predicate.matches(getAttributeValue(document, element, predicate.getAttributeName())))
+        return false;
+    return true;
+  }
+
+  private static String getAttributeValue(CompactDocument document, int element, String attributeName)
+  {
+    for (int attribute = document.getFirstAttribute(element); attribute != CompactDocument.NO_NODE;
+         attribute = document.getNextSibling(attribute))
+      if (attributeName.equals(document.getLocalName(attribute)) && document.getNamespaceURI(attribute).isEmpty())
+        return document.getText(attribute);
+    return null;
+  }
+
+  private List<Object> selectAttributes(List<Object> contexts)
+  {
+    List<Object> attributes = new ArrayList<>();
+
+    for (Object context : contexts) {
+      if (context instanceof Element) {
+        Element element = (Element)context;
+
+        if (attributeStep.isWildcard())
+          attributes.addAll((List<?>)element.getAttributes());
+        else {
+          Attribute attribute = element.getAttribute(attributeStep.getName());
+          if (attribute != null)
+            attributes.add(attribute);
+        }
+      }
+    }
+    return attributes;
+  }
+
+  private static boolean matches(Element element, SimpleLocationPath.Step step)
+  {
+    return step.matchesName(element.getNamespaceURI(), element.getName()) && matchesPredicates(element, step);
+  }
+
+  private static boolean matchesPredicates(Element element, SimpleLocationPath.Step step)
+  {
+    for (SimpleLocationPath.AttributePredicate predicate : step.getPredicates())
+      if (!predicate.matches(element.getAttributeValue(predicate.getAttributeName())))
+        return false;
+    return true;
+  }
+
+  private static Object getDocument(Object node)
+  {
+    if (node instanceof Document)
+      return node;
+    else if (node instanceof Element)
+      return ((Element)node).getDocument();
+    else if (node instanceof Attribute)
+      return ((Attribute)node).getDocument();
+    else
+      return null;
+  }
+}
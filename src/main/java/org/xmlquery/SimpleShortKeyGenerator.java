@@ -0,0 +1,51 @@
+package org.xmlquery;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates short numeric keys in the order values are first seen. Not thread-safe; use a
+ * {@link ConcurrentShortKeyGenerator} when a processor is shared between threads.
+ */
+public class SimpleShortKeyGenerator implements XPathKeyGenerator
+{
+  private final Map<String, Map<String, String>> keyMap;
+  private long currentKey;
+  private long size;
+
+  public SimpleShortKeyGenerator()
+  {
+    keyMap = new HashMap<>();
+    currentKey = 0L;
+    size = 0L;
+  }
+
+  @Override public String getKey(String uri, String value) throws XMLQueryException
+  {
+    Map<String, String> uriKeyMap = keyMap.get(uri);
+
+    if (uriKeyMap == null) {
+      uriKeyMap = new HashMap<>();
+      keyMap.put(uri, uriKeyMap);
+    }
+
+    String key = uriKeyMap.get(value);
+
+    if (key != null)
+      return key;
+    else {
+      if (currentKey == Long.MAX_VALUE)
+        throw new XMLQueryException("maximum number of keys generated");
+      currentKey++;
+      key = Long.toString(currentKey);
+      uriKeyMap.put(value, key);
+      size++;
+      return key;
+    }
+  }
+
+  @Override public long size()
+  {
+    return size;
+  }
+}
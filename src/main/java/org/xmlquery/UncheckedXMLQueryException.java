@@ -0,0 +1,18 @@
+package org.xmlquery;
+
+/**
+ * Wraps an {@link XMLQueryException} thrown while rows are pulled through an interface that does not
+ * permit checked exceptions, such as {@link java.util.Iterator} or {@link java.util.stream.Stream}.
+ */
+public class UncheckedXMLQueryException extends RuntimeException
+{
+  public UncheckedXMLQueryException(XMLQueryException cause)
+  {
+    super(cause.getMessage(), cause);
+  }
+
+  @Override public XMLQueryException getCause()
+  {
+    return (XMLQueryException)super.getCause();
+  }
+}
@@ -0,0 +1,119 @@
+package org.xmlquery;
+
+import org.jdom.UncheckedJDOMFactory;
+import org.jdom.input.SAXBuilder;
+
+/**
+ * The parser settings used to build documents. Configurations are immutable and are used as keys for the pools
+ * of parsers kept by {@link XMLUtil}, so the same few configurations should be reused rather than recreated.
+ *
+ * @see XMLUtil#processXMLStream(String, XMLParserConfiguration)
+ * @see XMLUtil#processXMLString(String, XMLParserConfiguration)
+ */
+public final class XMLParserConfiguration
+{
+  /**
+   * JDOM's default settings: DTDs and external entities are loaded and all whitespace is kept.
+   */
+  public static final XMLParserConfiguration DEFAULT = new XMLParserConfiguration(true, true, false, false);
+
+  /**
+   * Settings for trusted, DTD-less documents: nothing external is loaded, whitespace between elements is
+   * dropped and elements are built without JDOM's name and content checks.
+   */
+  public static final XMLParserConfiguration FAST = new XMLParserConfiguration(false, false, true, true);
+
+  private static final String LOAD_EXTERNAL_DTD_FEATURE =
+    "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+  private static final String EXTERNAL_GENERAL_ENTITIES_FEATURE =
+    "http://xml.org/sax/features/external-general-entities";
+  private static final String EXTERNAL_PARAMETER_ENTITIES_FEATURE =
+    "http://xml.org/sax/features/external-parameter-entities";
+
+  private final boolean loadExternalDTD;
+  private final boolean resolveExternalEntities;
+  private final boolean ignoreWhitespace;
+  private final boolean uncheckedFactory;
+
+  /**
+   * @param loadExternalDTD         whether to fetch the external DTD named by a document type declaration
+   * @param resolveExternalEntities whether to fetch external general and parameter entities
+   * @param ignoreWhitespace        whether to drop whitespace-only text between elements
+   * @param uncheckedFactory        whether to build nodes with an {@link UncheckedJDOMFactory}, skipping the
+   *                                checks that the parser has already made
+   */
+  public XMLParserConfiguration(boolean loadExternalDTD, boolean resolveExternalEntities, boolean ignoreWhitespace,
+    boolean uncheckedFactory)
+  {
+    this.loadExternalDTD = loadExternalDTD;
+    this.resolveExternalEntities = resolveExternalEntities;
+    this.ignoreWhitespace = ignoreWhitespace;
+    this.uncheckedFactory = uncheckedFactory;
+  }
+
+  public boolean isLoadingExternalDTD()
+  {
+    return loadExternalDTD;
+  }
+
+  public boolean isResolvingExternalEntities()
+  {
+    return resolveExternalEntities;
+  }
+
+  public boolean isIgnoringWhitespace()
+  {
+    return ignoreWhitespace;
+  }
+
+  public boolean isUsingUncheckedFactory()
+  {
+    return uncheckedFactory;
+  }
+
+  /**
+   * Apply these settings to a new builder. The builder reuses its underlying parser across builds.
+   */
+  void configureSAXBuilder(SAXBuilder builder)
+  {
+    builder.setReuseParser(true);
+    if (!loadExternalDTD)
+      builder.setFeature(LOAD_EXTERNAL_DTD_FEATURE, false);
+    if (!resolveExternalEntities) {
+      builder.setFeature(EXTERNAL_GENERAL_ENTITIES_FEATURE, false);
+      builder.setFeature(EXTERNAL_PARAMETER_ENTITIES_FEATURE, false);
+    }
+    builder.setIgnoringElementContentWhitespace(ignoreWhitespace);
+    builder.setIgnoringBoundaryWhitespace(ignoreWhitespace);
+    if (uncheckedFactory)
+      builder.setFactory(new UncheckedJDOMFactory());
+  }
+
+  @Override public boolean equals(Object o)
+  {
+    if (this == o)
+      return true;
+    if (!(o instanceof XMLParserConfiguration))
+      return false;
+
+    XMLParserConfiguration other = (XMLParserConfiguration)o;
+    return loadExternalDTD == other.loadExternalDTD && resolveExternalEntities == other.resolveExternalEntities
+      && ignoreWhitespace == other.ignoreWhitespace && uncheckedFactory == other.uncheckedFactory;
+  }
+
+  @Override public int hashCode()
+  {
+    return (loadExternalDTD ? 8 : 0) | (resolveExternalEntities ? 4 : 0) | (ignoreWhitespace ? 2 : 0)
+      | (uncheckedFactory ? 1 : 0);
+  }
+
+  @Override public String toString()
+  {
+    return "XMLParserConfiguration{" +
+      "loadExternalDTD=" + loadExternalDTD +
+      ", resolveExternalEntities=" + resolveExternalEntities +
+      ", ignoreWhitespace=" + ignoreWhitespace +
+      ", uncheckedFactory=" + uncheckedFactory +
+      '}';
+  }
+}
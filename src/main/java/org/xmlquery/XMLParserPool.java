@@ -0,0 +1,130 @@
+package org.xmlquery;
+
+import org.jdom.Document;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.jdom.input.SAXHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of idle {@link SAXBuilder}s sharing one configuration. A builder is taken from the pool for
+ * each build, or created if none is idle, and returned afterwards unless the pool is full or the build failed.
+ * Before a builder is returned, its parser's handlers are replaced so that the idle builder does not keep the
+ * document it built reachable. Thread-safe.
+ */
+class XMLParserPool
+{
+  public static final int DEFAULT_MAXIMUM_IDLE_BUILDERS = 64;
+
+  private final XMLParserConfiguration configuration;
+  private final BlockingQueue<PooledSAXBuilder> idleBuilders;
+
+  public XMLParserPool(XMLParserConfiguration configuration)
+  {
+    this(configuration, DEFAULT_MAXIMUM_IDLE_BUILDERS);
+  }
+
+  public XMLParserPool(XMLParserConfiguration configuration, int maximumIdleBuilders)
+  {
+    this.configuration = configuration;
+    this.idleBuilders = new ArrayBlockingQueue<>(maximumIdleBuilders);
+  }
+
+  public XMLParserConfiguration getConfiguration()
+  {
+    return configuration;
+  }
+
+  public Document build(InputStream xmlStream) throws JDOMException, IOException
+  {
+    PooledSAXBuilder builder = takeBuilder();
+    Document document = builder.build(xmlStream);
+    returnBuilder(builder); // A builder whose build failed is discarded in case it was left mid-document
+    return document;
+  }
+
+  public Document build(Reader xmlReader) throws JDOMException, IOException
+  {
+    PooledSAXBuilder builder = takeBuilder();
+    Document document = builder.build(xmlReader);
+    returnBuilder(builder);
+    return document;
+  }
+
+  public int getIdleBuilderCount()
+  {
+    return idleBuilders.size();
+  }
+
+  private PooledSAXBuilder takeBuilder()
+  {
+    PooledSAXBuilder builder = idleBuilders.poll();
+
+    if (builder == null) {
+      builder = new PooledSAXBuilder();
+      configuration.configureSAXBuilder(builder);
+    }
+    return builder;
+  }
+
+  private void returnBuilder(PooledSAXBuilder builder)
+  {
+    if (builder.releaseContentHandler())
+      idleBuilders.offer(builder);
+  }
+
+  /**
+   * A builder that remembers the parser it configures, so that the parser's references to the content handler,
+   * and through it to the last document built, can be dropped after a build.
+   */
+  private static class PooledSAXBuilder extends SAXBuilder
+  {
+    private static final DefaultHandler2 NO_HANDLER = new DefaultHandler2();
+    private static final String[] HANDLER_PROPERTIES = { "http://xml.org/sax/properties/lexical-handler",
+      "http://xml.org/sax/properties/declaration-handler", "http://xml.org/sax/handlers/LexicalHandler" };
+
+    private XMLReader parser;
+
+    @Override protected void configureParser(XMLReader parser, SAXHandler contentHandler) throws JDOMException
+    {
+      super.configureParser(parser, contentHandler);
+      this.parser = parser;
+    }
+
+    /**
+     * Point the parser's handlers at a stateless handler, returning false if the parser would not accept it.
+     */
+    boolean releaseContentHandler()
+    {
+      if (parser == null)
+        return true;
+
+      parser.setContentHandler(NO_HANDLER);
+      parser.setDTDHandler(NO_HANDLER);
+      for (String property : HANDLER_PROPERTIES) {
+        Object handler;
+
+        try {
+          handler = parser.getProperty(property);
+        } catch (SAXException e) { // Not recognised, so the parser holds no such handler
+          continue;
+        }
+        try {
+          if (handler != null)
+            parser.setProperty(property, NO_HANDLER);
+        } catch (SAXException e) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
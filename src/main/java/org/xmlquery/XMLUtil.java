@@ -3,13 +3,11 @@ package org.xmlquery;
 import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
-import org.jdom.JDOMException;
 import org.jdom.Namespace;
-import org.jdom.input.SAXBuilder;
 import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
-import org.jdom.xpath.XPath;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -23,17 +21,33 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class that provides some simple XML utility methods.
  */
 public class XMLUtil
 {
+  /**
+   * Local files at least this large are memory-mapped rather than read into the heap. Mapping and unmapping
+   * costs more than a single read for small files. Files too large for a single mapping are read through a
+   * buffered stream.
+   */
+  public static final int FILE_MAPPING_THRESHOLD = 256 * 1024;
+
+  private static final XPathExpressionCache xPathExpressionCache = new XPathExpressionCache();
+
+  private static final Map<XMLParserConfiguration, XMLParserPool> xmlParserPools = new ConcurrentHashMap<>();
+
   /**
    * Method that writes an XML file from an instance of a Document.
    */
@@ -82,14 +96,25 @@ public class XMLUtil
    * Method that reads a simple XML file and generates an instance of a Document from it.
    */
   public static Document processXMLStream(String inputXMLStreamName) throws XMLQueryException
+  {
+    return processXMLStream(inputXMLStreamName, XMLParserConfiguration.DEFAULT);
+  }
+
+  /**
+   * Read an XML file with a pooled parser of the given configuration.
+   */
+  public static Document processXMLStream(String inputXMLStreamName, XMLParserConfiguration configuration)
+    throws XMLQueryException
   {
     Document doc;
     
     try {
-      SAXBuilder builder = new SAXBuilder();
       InputStream xmlStream = createInputXMLStream(inputXMLStreamName);
-      doc = builder.build(xmlStream);
-      xmlStream.close();
+      try {
+        doc = getXMLParserPool(configuration).build(xmlStream);
+      } finally {
+        xmlStream.close();
+      }
     } catch (Exception e) {
       throw new XMLQueryException("error opening XML file '" + inputXMLStreamName + "': " + e.getMessage());
     }
@@ -97,6 +122,14 @@ public class XMLUtil
     return doc;
   }
 
+  /**
+   * Parse an XML file into a {@link CompactDocument}. The JDOM tree built while parsing is discarded.
+   */
+  public static CompactDocument processXMLStreamToCompactDocument(String inputXMLStreamName) throws XMLQueryException
+  {
+    return CompactDocument.create(processXMLStream(inputXMLStreamName));
+  }
+
   /**
    * Get a list of files in a directory with the extension ".xml".
    */
@@ -145,6 +178,43 @@ public class XMLUtil
         "only elements and attributes currently supported for absolute path construction");
   }
 
+  /**
+   * Return the absolute location of an element or attribute using the document's {@link XPathLocationIndex},
+   * which numbers each set of siblings only once.
+   */
+  public static String getAbsoluteXPathLocation(Document document, Object node) throws XMLQueryException
+  {
+    return XPathLocationIndex.getXPathLocationIndex(document).getAbsoluteXPathLocation(node);
+  }
+
+  /**
+   * Discard the absolute locations indexed for a document after it has been modified.
+   */
+  public static void invalidateXPathLocationIndex(Document document)
+  {
+    XPathLocationIndex.getXPathLocationIndex(document).invalidate();
+  }
+
+  /**
+   * Build an {@link XPathElementIndex} of a document's elements and attach it to the document, so that
+   * expressions such as {@code //order} or {@code //item[@sku='X']} are answered by lookups. The document must
+   * not be modified while the index is attached.
+   *
+   * @param indexedAttributeNames the names of the unprefixed attributes whose values are indexed
+   */
+  public static XPathElementIndex createXPathElementIndex(Document document, String... indexedAttributeNames)
+  {
+    return XPathElementIndex.createXPathElementIndex(document, Arrays.asList(indexedAttributeNames));
+  }
+
+  /**
+   * Detach a document's element index, after the document has been modified.
+   */
+  public static void removeXPathElementIndex(Document document)
+  {
+    XPathElementIndex.removeXPathElementIndex(document);
+  }
+
   private static String buildAbsoluteXPath(Element element)
   {
     if (element.isRootElement())
@@ -158,7 +228,7 @@ public class XMLUtil
   private static int getXPathIndexOfChild(Element element)
   {
     Element parent = element.getParentElement();
-    return parent.getChildren(element.getName()).indexOf(element) + 1;
+    return parent.getChildren(element.getName(), element.getNamespace()).indexOf(element) + 1;
   }
 
   private static String buildAbsoluteXPath(Attribute attribute)
@@ -180,10 +250,18 @@ public class XMLUtil
    * Method that reads an XML string and generates an instance of a Document from it.
    */
   public static Document processXMLString(String inputXMLString) throws XMLQueryException
+  {
+    return processXMLString(inputXMLString, XMLParserConfiguration.DEFAULT);
+  }
+
+  /**
+   * Read an XML string with a pooled parser of the given configuration.
+   */
+  public static Document processXMLString(String inputXMLString, XMLParserConfiguration configuration)
+    throws XMLQueryException
   {
     try {
-      SAXBuilder builder = new SAXBuilder();
-      return builder.build(new StringReader(inputXMLString));
+      return getXMLParserPool(configuration).build(new StringReader(inputXMLString));
     } catch (Exception e) {
       throw new XMLQueryException("error processing XML string: " + e.getMessage());
     }
@@ -191,18 +269,29 @@ public class XMLUtil
 
   public static List<Object> executeXPathExpression(Object context, String xPathExpression) throws XMLQueryException
   {
-    try {
-      XPath xPath = XPath.newInstance(xPathExpression);
-      List<Object> results = new ArrayList<Object>();
+    return executeXPathExpression(context, xPathExpressionCache.getCompiledExpression(xPathExpression));
+  }
 
-      for (Object result : xPath.selectNodes(context)) {
-        results.add(result);
-      }
+  public static List<Object> executeXPathExpression(Object context, CompiledXPathExpression xPathExpression)
+    throws XMLQueryException
+  {
+    return xPathExpression.selectNodes(context);
+  }
 
-      return results;
-    } catch (JDOMException e) {
-      throw new XMLQueryException("JDOM exception processing " + xPathExpression + ": " + e.getMessage());
-    }
+  /**
+   * Compile an XPath expression using the shared expression cache.
+   */
+  public static CompiledXPathExpression compileXPathExpression(String xPathExpression) throws XMLQueryException
+  {
+    return xPathExpressionCache.getCompiledExpression(xPathExpression);
+  }
+
+  /**
+   * The cache used by {@link #executeXPathExpression(Object, String)} and {@link #compileXPathExpression(String)}.
+   */
+  public static XPathExpressionCache getXPathExpressionCache()
+  {
+    return xPathExpressionCache;
   }
 
   public static Element createElement(Document doc, Element parentElement, String elementName)
@@ -511,6 +600,11 @@ public class XMLUtil
     return element.getName() != null && element.getName().equals(name);
   }
 
+  private static XMLParserPool getXMLParserPool(XMLParserConfiguration configuration)
+  {
+    return xmlParserPools.computeIfAbsent(configuration, XMLParserPool::new);
+  }
+
   private static boolean hasAttribute(Element element, String attributeName)
   {
     return element.getAttributeValue(attributeName) != null;
@@ -537,26 +631,74 @@ public class XMLUtil
     }
   }
 
-  private static InputStream createInputXMLStream(String inputXMLStreamName) throws XMLQueryException
+  /**
+   * Open an XML stream given a URL or a local file path. Local files are read in a single call or
+   * memory-mapped and returned unbuffered, leaving the parser to detect their encoding from the raw bytes.
+   */
+  static InputStream createInputXMLStream(String inputXMLStreamName) throws XMLQueryException
   {
-    InputStream xmlStream = null;
-
     try {
-      URL url = new URL(inputXMLStreamName);
-      String protocol = url.getProtocol();
-      if (protocol.equals("file")) {
-        String path = url.getPath();
-        xmlStream = new FileInputStream(path);
-      } else
-        xmlStream = url.openStream();
+      File localFile = getLocalFile(inputXMLStreamName);
+
+      if (localFile != null)
+        return openLocalFile(localFile);
+      else
+        return new URL(inputXMLStreamName).openStream();
     } catch (MalformedURLException e) {
       throw new XMLQueryException("invalid URL for XML stream '" + inputXMLStreamName + "': " + e.getMessage());
     } catch (IOException e) {
       throw new XMLQueryException(
         "IO error opening XML stream '" + inputXMLStreamName + "': " + e.getMessage());
     }
+  }
+
+  /**
+   * Return the local file named by a {@code file:} URL or a plain path, or null for any other URL. The path of a
+   * {@code file:} URL is used as written, without decoding escapes, so names containing spaces open as before.
+   */
+  private static File getLocalFile(String inputXMLStreamName) throws MalformedURLException
+  {
+    if (inputXMLStreamName.startsWith("file:")) {
+      String path = new URL(inputXMLStreamName).getPath();
+      return path.isEmpty() ? null : new File(path);
+    } else if (hasURLScheme(inputXMLStreamName))
+      return null;
+    else
+      return new File(inputXMLStreamName);
+  }
+
+  private static boolean hasURLScheme(String name)
+  {
+    int colon = name.indexOf(':');
+
+    if (colon < 2) // Also excludes Windows drive letters
+      return false;
+
+    for (int i = 0; i < colon; i++) {
+      char c = name.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.')
+        return false;
+    }
+    return true;
+  }
+
+  private static InputStream openLocalFile(File file) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
 
-    return xmlStream;
+      if (size > Integer.MAX_VALUE) // A buffer cannot hold it
+        return new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+      else if (size >= FILE_MAPPING_THRESHOLD) // The mapping remains valid once the channel is closed
+        return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+      else {
+        ByteBuffer buffer = ByteBuffer.allocate((int)size);
+        while (buffer.hasRemaining() && channel.read(buffer) != -1)
+          ;
+        buffer.flip();
+        return new ByteBufferInputStream(buffer);
+      }
+    }
   }
 
   private static class XMLFileFilter implements FilenameFilter
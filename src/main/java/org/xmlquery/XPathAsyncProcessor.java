@@ -0,0 +1,352 @@
+package org.xmlquery;
+
+import org.jdom.Document;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parse XML files and evaluate a list of {@link XPathExpression}s against them without blocking the calling
+ * thread. All parsing and evaluation runs on a caller-supplied executor, which is not shut down by this class.
+ * <p>
+ * Rows are published through {@link XPathFlow.Publisher}s that honour demand: a document is parsed and its rows
+ * are evaluated one at a time only while the subscriber has requested more, so neither a whole table nor a
+ * whole file's rows are buffered. While a subscriber has no outstanding demand no executor thread is used. Files
+ * are processed in the order given and each file's rows in the order
+ * {@link XPathExpressionProcessor#processXPathExpressions} would produce them. A file that fails to parse or
+ * evaluate, with any exception or error, ends the publication with an {@link XMLQueryException} naming the file.
+ * A subscriber whose {@code onNext} throws is treated as having cancelled.
+ * <p>
+ * All files share the supplied {@link XPathExpressionProcessor}, so generated keys are consistent across every
+ * publication.
+ *
+ * @see XPathBatchProcessor
+ */
+public class XPathAsyncProcessor
+{
+  /**
+   * The maximum number of rows delivered by one executor task before it yields to other tasks.
+   */
+  public static final int DRAIN_BATCH_SIZE = 1024;
+
+  private final XPathExpressionProcessor processor;
+  private final Executor executor;
+
+  public XPathAsyncProcessor(XPathExpressionProcessor processor, Executor executor)
+  {
+    this.processor = processor;
+    this.executor = executor;
+  }
+
+  /**
+   * Create a publisher of the rows of a sequence of XML files. Each subscriber receives every row.
+   */
+  public XPathFlow.Publisher<List<XPathResultValue>> publishXPathExpressions(Collection<String> xmlStreamNames,
+    List<XPathExpression> expressions) throws XMLQueryException
+  {
+    List<String> xmlStreamNameList = new ArrayList<>(xmlStreamNames);
+
+    for (XPathExpression expression : expressions) // Report invalid expressions before anything is published
+      expression.getCompiledExpression();
+
+    return subscriber -> {
+      RowSubscription subscription = new RowSubscription(xmlStreamNameList.iterator(), expressions, subscriber);
+      subscriber.onSubscribe(subscription);
+    };
+  }
+
+  /**
+   * Parse an XML file and add its rows to a table on the executor.
+   */
+  public CompletableFuture<XPathResultValueTable> processXPathExpressionsAsync(String xmlStreamName,
+    List<XPathExpression> expressions, XPathResultValueTable accumulatedXPathResultValueTable)
+  {
+    CompletableFuture<XPathResultValueTable> future = new CompletableFuture<>();
+
+    try {
+      executor.execute(() -> {
+        try {
+          Document document = processor.parseXMLStream(xmlStreamName);
+          future.complete(processor.processXPathExpressions(document, expressions, accumulatedXPathResultValueTable));
+        } catch (XMLQueryException | RuntimeException e) {
+          future.completeExceptionally(e);
+        } catch (Error e) {
+          future.completeExceptionally(e);
+          throw e;
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(
+        new XMLQueryException("executor rejected XML file '" + xmlStreamName + "': " + e.getMessage(), e));
+    }
+    return future;
+  }
+
+  /**
+   * Deliver the rows of a sequence of XML files to a sink on the executor, requesting rows in batches of
+   * {@link #DRAIN_BATCH_SIZE}. The sink is only ever called by one thread at a time. The future completes with
+   * the number of rows delivered, or exceptionally if a file or the sink fails.
+   */
+  public CompletableFuture<Long> processXPathExpressionsAsync(Collection<String> xmlStreamNames,
+    List<XPathExpression> expressions, XPathResultRowSink sink)
+  {
+    CompletableFuture<Long> future = new CompletableFuture<>();
+
+    try {
+      publishXPathExpressions(xmlStreamNames, expressions).subscribe(new SinkSubscriber(sink, future));
+    } catch (XMLQueryException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * The state of one subscriber's publication. Draining is serialized by a count of pending drain requests:
+   * whoever raises it from zero runs the drain on the executor, which keeps draining until it has accounted
+   * for every request made meanwhile.
+   */
+  private class RowSubscription implements XPathFlow.Subscription, Runnable
+  {
+    private final Iterator<String> xmlStreamNames;
+    private final List<XPathExpression> expressions;
+    private final XPathFlow.Subscriber<? super List<XPathResultValue>> subscriber;
+    private final AtomicLong demand;
+    private final AtomicInteger pendingDrainCount;
+    private volatile boolean isCancelled;
+    private volatile Throwable invalidRequest;
+    private String xmlStreamName;
+    private XPathResultRowIterator rowIterator;
+    private boolean isTerminated;
+
+    RowSubscription(Iterator<String> xmlStreamNames, List<XPathExpression> expressions,
+      XPathFlow.Subscriber<? super List<XPathResultValue>> subscriber)
+    {
+      this.xmlStreamNames = xmlStreamNames;
+      this.expressions = expressions;
+      this.subscriber = subscriber;
+      this.demand = new AtomicLong();
+      this.pendingDrainCount = new AtomicInteger();
+      this.isCancelled = false;
+      this.isTerminated = false;
+    }
+
+    @Override public void request(long n)
+    {
+      if (n < 1)
+        invalidRequest = new IllegalArgumentException("requested row count must be positive, got " + n);
+      else
+        demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+      scheduleDrain();
+    }
+
+    @Override public void cancel()
+    {
+      isCancelled = true;
+      scheduleDrain(); // Release the document
+    }
+
+    private void scheduleDrain()
+    {
+      if (pendingDrainCount.getAndIncrement() == 0)
+        submitDrain();
+    }
+
+    private void submitDrain()
+    {
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        isCancelled = true;
+        subscriber.onError(new XMLQueryException("executor rejected row publication: " + e.getMessage(), e));
+      }
+    }
+
+    @Override public void run()
+    {
+      while (true) {
+        int drainRequestCount = pendingDrainCount.get();
+
+        if (drain()) { // Yield, keeping the right to drain
+          submitDrain();
+          return;
+        }
+        if (pendingDrainCount.addAndGet(-drainRequestCount) == 0)
+          return;
+      }
+    }
+
+    /**
+     * Deliver rows while there is demand, returning true if the batch size was reached with demand left.
+     */
+    private boolean drain()
+    {
+      if (isTerminated)
+        return false;
+      else if (isCancelled) {
+        terminate();
+        return false;
+      } else if (invalidRequest != null) {
+        terminate();
+        subscriber.onError(invalidRequest);
+        return false;
+      }
+
+      long requested = demand.get();
+      long emitted = 0;
+
+      try {
+        while (emitted < requested && emitted < DRAIN_BATCH_SIZE && !isCancelled) {
+          List<XPathResultValue> row = nextRow();
+
+          if (row == null) {
+            terminate();
+            subscriber.onComplete();
+            return false;
+          } else if (!deliver(row))
+            return false;
+          emitted++;
+        }
+
+        if (requested != Long.MAX_VALUE)
+          requested = demand.addAndGet(-emitted);
+
+        if (!isCancelled && isExhausted()) {
+          terminate();
+          subscriber.onComplete();
+          return false;
+        }
+      } catch (XMLQueryException e) {
+        terminate();
+        subscriber.onError(e);
+        return false;
+      }
+      return requested > 0 && emitted == DRAIN_BATCH_SIZE && !isCancelled;
+    }
+
+    /**
+     * Pass a row to the subscriber, returning false if it threw, which is treated as cancelling the subscription.
+     */
+    private boolean deliver(List<XPathResultValue> row)
+    {
+      try {
+        subscriber.onNext(row);
+        return true;
+      } catch (RuntimeException e) {
+        terminate();
+        return false;
+      } catch (Error e) {
+        terminate(); // No further drain does anything, so the pending drain count no longer matters
+        throw e;
+      }
+    }
+
+    /**
+     * Return the next row, parsing the next file when the current one has no more rows, or null at the end.
+     */
+    private List<XPathResultValue> nextRow() throws XMLQueryException
+    {
+      try {
+        while (rowIterator == null || !rowIterator.hasNext()) {
+          if (!xmlStreamNames.hasNext())
+            return null;
+
+          xmlStreamName = xmlStreamNames.next();
+          rowIterator = null;
+          Document document = processor.parseXMLStream(xmlStreamName);
+          rowIterator = processor.createRowIterator(document, expressions);
+        }
+        return rowIterator.next();
+      } catch (UncheckedXMLQueryException e) {
+        throw new XMLQueryException("error processing XML file '" + xmlStreamName + "': " + e.getMessage(),
+          e.getCause());
+      } catch (RuntimeException | Error e) {
+        throw new XMLQueryException("error processing XML file '" + xmlStreamName + "': " + e, e);
+      }
+    }
+
+    /**
+     * Whether every row has been delivered, so that completion can be signalled without further demand. Only
+     * rows of the current file are evaluated to find out; the next file is not parsed.
+     */
+    private boolean isExhausted() throws XMLQueryException
+    {
+      try {
+        return !xmlStreamNames.hasNext() && (rowIterator == null || !rowIterator.hasNext());
+      } catch (UncheckedXMLQueryException e) {
+        throw new XMLQueryException("error processing XML file '" + xmlStreamName + "': " + e.getMessage(),
+          e.getCause());
+      } catch (RuntimeException | Error e) {
+        throw new XMLQueryException("error processing XML file '" + xmlStreamName + "': " + e, e);
+      }
+    }
+
+    private void terminate()
+    {
+      isTerminated = true;
+      if (rowIterator != null)
+        rowIterator.finish();
+      rowIterator = null;
+    }
+  }
+
+  /**
+   * Delivers published rows to a sink, requesting another batch after each full batch.
+   */
+  private static class SinkSubscriber implements XPathFlow.Subscriber<List<XPathResultValue>>
+  {
+    private final XPathResultRowSink sink;
+    private final CompletableFuture<Long> future;
+    private XPathFlow.Subscription subscription;
+    private long rowCount;
+
+    SinkSubscriber(XPathResultRowSink sink, CompletableFuture<Long> future)
+    {
+      this.sink = sink;
+      this.future = future;
+      this.rowCount = 0;
+    }
+
+    @Override public void onSubscribe(XPathFlow.Subscription subscription)
+    {
+      this.subscription = subscription;
+      subscription.request(DRAIN_BATCH_SIZE);
+    }
+
+    @Override public void onNext(List<XPathResultValue> row)
+    {
+      if (future.isDone())
+        return;
+
+      try {
+        sink.acceptRow(row);
+      } catch (XMLQueryException | RuntimeException e) {
+        subscription.cancel();
+        future.completeExceptionally(e);
+        return;
+      } catch (Error e) {
+        subscription.cancel();
+        future.completeExceptionally(e);
+        throw e;
+      }
+      if (++rowCount % DRAIN_BATCH_SIZE == 0)
+        subscription.request(DRAIN_BATCH_SIZE);
+    }
+
+    @Override public void onError(Throwable throwable)
+    {
+      future.completeExceptionally(throwable);
+    }
+
+    @Override public void onComplete()
+    {
+      future.complete(rowCount);
+    }
+  }
+}
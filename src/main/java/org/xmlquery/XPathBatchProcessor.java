@@ -0,0 +1,164 @@
+package org.xmlquery;
+
+import org.jdom.Document;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parse a set of XML files and evaluate the same list of {@link XPathExpression}s against each of them
+ * concurrently, merging the resulting rows into a single {@link XPathResultRowSink} such as an
+ * {@link XPathResultValueTable}.
+ * <p>
+ * Files are processed on a caller-supplied executor, which is not shut down by this class; on Java 21 and
+ * later a virtual thread per task executor works well. At most a fixed number of files are in flight at
+ * once, so the submitting thread blocks rather than queueing the whole directory. The rows of each file are
+ * delivered to the sink together, in the order {@link XPathExpressionProcessor#processXPathExpressions}
+ * would produce them, while files are delivered in completion order. A file that fails to parse or
+ * evaluate is recorded in the returned {@link XPathBatchResult} and does not stop the others; none of its rows
+ * are delivered. If the sink itself fails part way through a file, the rows before the failing one have already
+ * been delivered and the file is recorded as failed.
+ * <p>
+ * All files share the supplied {@link XPathExpressionProcessor}, so generated keys are consistent across
+ * the whole batch.
+ *
+ * @see XMLUtil#getXMLFileNames(String)
+ */
+public class XPathBatchProcessor
+{
+  public static final int DEFAULT_MAXIMUM_FILES_IN_FLIGHT = 64;
+
+  private final XPathExpressionProcessor processor;
+  private final ExecutorService executor;
+  private final int maximumFilesInFlight;
+
+  public XPathBatchProcessor(XPathExpressionProcessor processor, ExecutorService executor)
+  {
+    this(processor, executor, DEFAULT_MAXIMUM_FILES_IN_FLIGHT);
+  }
+
+  public XPathBatchProcessor(XPathExpressionProcessor processor, ExecutorService executor,
+    int maximumFilesInFlight)
+  {
+    if (maximumFilesInFlight < 1)
+      throw new IllegalArgumentException("maximum files in flight must be positive, got " + maximumFilesInFlight);
+
+    this.processor = processor;
+    this.executor = executor;
+    this.maximumFilesInFlight = maximumFilesInFlight;
+  }
+
+  /**
+   * Process every file with the extension ".xml" in a directory, adding the rows to a table.
+   */
+  public XPathBatchResult processXMLDirectory(String directoryName, List<XPathExpression> expressions,
+    XPathResultValueTable resultTable) throws XMLQueryException
+  {
+    return processXMLFiles(XMLUtil.getXMLFileNames(directoryName), expressions, resultTable);
+  }
+
+  /**
+   * Process a collection of XML files, in file name order, delivering each file's rows to the sink. The sink
+   * is only ever called by one thread at a time. Returns when every file has been processed.
+   * <p>
+   * If the executor rejects a file or the calling thread is interrupted, files not yet delivered are not
+   * delivered, and the exception is thrown only once every submitted file has finished, so the sink is no longer
+   * in use when this method returns or throws.
+   */
+  public XPathBatchResult processXMLFiles(Collection<String> xmlFileNames, List<XPathExpression> expressions,
+    XPathResultRowSink sink) throws XMLQueryException
+  {
+    Semaphore inFlightFiles = new Semaphore(maximumFilesInFlight);
+    Map<String, XMLQueryException> failures = new ConcurrentHashMap<>();
+    AtomicInteger processedFileCount = new AtomicInteger();
+    AtomicLong rowCount = new AtomicLong();
+    AtomicBoolean isAbandoned = new AtomicBoolean();
+
+    for (XPathExpression expression : expressions) // Report invalid expressions once rather than per file
+      expression.getCompiledExpression();
+
+    try {
+      for (String xmlFileName : new TreeSet<>(xmlFileNames)) {
+        inFlightFiles.acquire();
+        try {
+          executor.execute(() -> {
+            try {
+              long fileRowCount = processXMLFile(xmlFileName, expressions, sink, isAbandoned);
+              rowCount.addAndGet(fileRowCount);
+              processedFileCount.incrementAndGet();
+            } catch (XMLQueryException e) {
+              failures.put(xmlFileName, e);
+            } catch (RuntimeException e) {
+              failures.put(xmlFileName,
+                new XMLQueryException("error processing XML file '" + xmlFileName + "': " + e.getMessage(), e));
+            } catch (Error e) { // Record the file before letting the error reach the executor
+              failures.put(xmlFileName,
+                new XMLQueryException("error processing XML file '" + xmlFileName + "': " + e, e));
+              throw e;
+            } finally {
+              inFlightFiles.release();
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          inFlightFiles.release();
+          abandon(isAbandoned, inFlightFiles);
+          throw new XMLQueryException("executor rejected XML file '" + xmlFileName + "': " + e.getMessage(), e);
+        }
+      }
+      inFlightFiles.acquire(maximumFilesInFlight); // Wait for the remaining files
+      inFlightFiles.release(maximumFilesInFlight);
+    } catch (InterruptedException e) {
+      abandon(isAbandoned, inFlightFiles);
+      Thread.currentThread().interrupt();
+      throw new XMLQueryException("interrupted while processing XML files", e);
+    }
+
+    return new XPathBatchResult(processedFileCount.get(), rowCount.get(), failures);
+  }
+
+  /**
+   * Stop the files still in flight from delivering rows, and wait for them to finish.
+   */
+  private void abandon(AtomicBoolean isAbandoned, Semaphore inFlightFiles)
+  {
+    isAbandoned.set(true);
+    inFlightFiles.acquireUninterruptibly(maximumFilesInFlight);
+    inFlightFiles.release(maximumFilesInFlight);
+  }
+
+  private long processXMLFile(String xmlFileName, List<XPathExpression> expressions, XPathResultRowSink sink,
+    AtomicBoolean isAbandoned) throws XMLQueryException
+  {
+    Document document = processor.parseXMLStream(xmlFileName);
+    XPathResultRowIterator rowIterator = processor.createRowIterator(document, expressions);
+    List<List<XPathResultValue>> rows = new ArrayList<>();
+
+    try {
+      while (rowIterator.hasNext())
+        rows.add(rowIterator.next());
+    } catch (UncheckedXMLQueryException e) {
+      throw new XMLQueryException("error processing XML file '" + xmlFileName + "': " + e.getMessage(), e.getCause());
+    } finally {
+      rowIterator.finish();
+    }
+
+    synchronized (sink) {
+      if (isAbandoned.get())
+        throw new XMLQueryException("batch abandoned before XML file '" + xmlFileName + "' was delivered");
+
+      for (List<XPathResultValue> row : rows)
+        sink.acceptRow(row);
+    }
+    return rows.size();
+  }
+}
@@ -0,0 +1,60 @@
+package org.xmlquery;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summary of a run of an {@link XPathBatchProcessor}. Files that could not be parsed or evaluated are
+ * reported here together with the exception that stopped them; they do not affect the other files.
+ *
+ * @see XPathBatchProcessor
+ */
+public class XPathBatchResult
+{
+  private final int processedFileCount;
+  private final long rowCount;
+  private final Map<String, XMLQueryException> failures;
+
+  public XPathBatchResult(int processedFileCount, long rowCount, Map<String, XMLQueryException> failures)
+  {
+    this.processedFileCount = processedFileCount;
+    this.rowCount = rowCount;
+    this.failures = Collections.unmodifiableMap(new TreeMap<>(failures));
+  }
+
+  /**
+   * The number of files whose rows were all delivered to the sink.
+   */
+  public int getProcessedFileCount()
+  {
+    return processedFileCount;
+  }
+
+  public long getRowCount()
+  {
+    return rowCount;
+  }
+
+  /**
+   * The files that failed, in file name order, mapped to the exception that stopped them.
+   */
+  public Map<String, XMLQueryException> getFailures()
+  {
+    return failures;
+  }
+
+  public boolean hasFailures()
+  {
+    return !failures.isEmpty();
+  }
+
+  @Override public String toString()
+  {
+    return "XPathBatchResult{" +
+      "processedFileCount=" + processedFileCount +
+      ", rowCount=" + rowCount +
+      ", failedFileCount=" + failures.size() +
+      '}';
+  }
+}
@@ -0,0 +1,186 @@
+package org.xmlquery;
+
+import org.jdom.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An estimate of the size of the result table for a list of {@link XPathExpression}s, made without expanding
+ * the table. Each column's fan-out, the average number of nodes it selects per row of the columns to its left,
+ * is measured by evaluating it against a sample of the nodes selected by the previous column. The estimated row
+ * count is the product of the fan-outs.
+ * <p>
+ * Context-free columns and the first column are measured exactly; other columns are only as accurate as their
+ * sample. Samples are spread evenly through document order, so the same document always gives the same estimate.
+ * Evaluations against the whole document go through the processor's result cache, if it has one, so expanding
+ * the table afterwards does not repeat them; a caller about to expand the table may also collect their nodes.
+ *
+ * @see XPathExpressionProcessor#estimateCardinality(Document, List)
+ */
+public class XPathCardinalityEstimate
+{
+  public static final int DEFAULT_SAMPLE_SIZE = 32;
+
+  private final List<XPathExpression> expressions;
+  private final double[] fanOuts;
+  private final int[] sampledContextCounts;
+
+  private XPathCardinalityEstimate(List<XPathExpression> expressions, double[] fanOuts, int[] sampledContextCounts)
+  {
+    this.expressions = Collections.unmodifiableList(expressions);
+    this.fanOuts = fanOuts;
+    this.sampledContextCounts = sampledContextCounts;
+  }
+
+  /**
+   * @param sampleSize         the maximum number of context nodes each column is evaluated against
+   * @param resultCache        the cache for evaluations against the document itself; may be null
+   * @param documentSelections receives, by column, the nodes selected by each evaluation against the document
+   *                           itself; may be null
+   */
+  static XPathCardinalityEstimate estimate(XPathQueryPlan plan, Document document, int sampleSize,
+    XPathResultCache resultCache, Map<Integer, List<Object>> documentSelections) throws XMLQueryException
+  {
+    if (sampleSize < 1)
+      throw new IllegalArgumentException("sample size must be positive, got " + sampleSize);
+
+    int columnCount = plan.getColumnCount();
+    double[] fanOuts = new double[columnCount];
+    int[] sampledContextCounts = new int[columnCount];
+    List<Object> contexts = Collections.<Object>singletonList(document);
+
+    for (int column = 0; column < columnCount && !contexts.isEmpty(); column++) {
+      CompiledXPathExpression expression = plan.getExpression(column).getCompiledExpression();
+      List<Object> sampledNodes = new ArrayList<>();
+
+      if (plan.isContextFree(column) || column == 0) { // The same nodes for every row
+        List<Object> nodes = resultCache != null ? resultCache.selectNodes(document, expression) :
+          XMLUtil.executeXPathExpression(document, expression);
+
+        if (documentSelections != null)
+          documentSelections.put(column, nodes);
+
+        fanOuts[column] = nodes.size();
+        sampledContextCounts[column] = 1;
+        addSample(nodes, sampleSize, sampledNodes);
+      } else {
+        long selectedNodeCount = 0;
+        int samplePerContext = (sampleSize + contexts.size() - 1) / contexts.size();
+
+        for (Object context : contexts) {
+          List<Object> nodes = XMLUtil.executeXPathExpression(context, expression);
+
+          selectedNodeCount += nodes.size();
+          addSample(nodes, samplePerContext, sampledNodes);
+        }
+        fanOuts[column] = (double)selectedNodeCount / contexts.size();
+        sampledContextCounts[column] = contexts.size();
+      }
+
+      contexts = sampledNodes.size() <= sampleSize ? sampledNodes : sample(sampledNodes, sampleSize);
+    }
+
+    return new XPathCardinalityEstimate(plan.getExpressions(), fanOuts, sampledContextCounts);
+  }
+
+  public int getColumnCount()
+  {
+    return fanOuts.length;
+  }
+
+  public XPathExpression getExpression(int column)
+  {
+    return expressions.get(column);
+  }
+
+  /**
+   * The average number of rows a column produces for each row of the columns to its left.
+   */
+  public double getEstimatedFanOut(int column)
+  {
+    return fanOuts[column];
+  }
+
+  /**
+   * The number of context nodes a column was evaluated against, or 0 if an earlier column selected nothing.
+   */
+  public int getSampledContextCount(int column)
+  {
+    return sampledContextCounts[column];
+  }
+
+  /**
+   * The estimated number of rows in the table made of the columns up to and including a column.
+   */
+  public long getEstimatedRowCount(int column)
+  {
+    double rowCount = 1;
+
+    for (int i = 0; i <= column; i++)
+      rowCount *= fanOuts[i];
+
+    return Math.round(rowCount); // Saturates at Long.MAX_VALUE
+  }
+
+  public long getEstimatedRowCount()
+  {
+    return fanOuts.length == 0 ? 0 : getEstimatedRowCount(fanOuts.length - 1);
+  }
+
+  public long getEstimatedCellCount()
+  {
+    long rowCount = getEstimatedRowCount();
+
+    return rowCount > Long.MAX_VALUE / Math.max(1, fanOuts.length) ? Long.MAX_VALUE : rowCount * fanOuts.length;
+  }
+
+  /**
+   * The column with the largest estimated fan-out, or -1 if there are no columns.
+   */
+  public int getWidestColumn()
+  {
+    int widestColumn = -1;
+
+    for (int column = 0; column < fanOuts.length; column++)
+      if (widestColumn == -1 || fanOuts[column] > fanOuts[widestColumn])
+        widestColumn = column;
+
+    return widestColumn;
+  }
+
+  private static void addSample(List<Object> nodes, int sampleSize, List<Object> sample)
+  {
+    if (nodes.size() <= sampleSize)
+      sample.addAll(nodes);
+    else
+      sample.addAll(sample(nodes, sampleSize));
+  }
+
+  /**
+   * Take nodes evenly spaced through a list, keeping their order.
+   */
+  private static List<Object> sample(List<Object> nodes, int sampleSize)
+  {
+    List<Object> sample = new ArrayList<>(sampleSize);
+
+    for (int i = 0; i < sampleSize; i++)
+      sample.add(nodes.get((int)((long)i * nodes.size() / sampleSize)));
+
+    return sample;
+  }
+
+  @Override public String toString()
+  {
+    StringBuilder sb = new StringBuilder("XPathCardinalityEstimate{estimatedRowCount=")
+      .append(getEstimatedRowCount());
+
+    for (int column = 0; column < fanOuts.length; column++)
+      sb.append(", ").append(expressions.get(column).getXPathExpression()).append(" (fan-out ")
+        .append(String.format("%.1f", fanOuts[column])).append(')');
+
+    return sb.append('}').toString();
+  }
+}
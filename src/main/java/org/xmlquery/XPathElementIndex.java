@@ -0,0 +1,174 @@
+package org.xmlquery;
+
+import org.jdom.Attribute;
+import org.jdom.Document;
+import org.jdom.Element;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An optional per-document index of elements by name and by the values of selected attributes, built in a
+ * single pass over the document. Simple location paths with a descendant step evaluated from the document, such
+ * as {@code //order} or {@code //item[@sku='X']/price}, look up their candidate elements in the index instead of
+ * walking the whole tree.
+ * <p>
+ * Like {@link XPathLocationIndex}, the index is stored as a property of the document it describes. It is a
+ * snapshot: after the document is modified it must be rebuilt or removed. Every list in the index is in
+ * document order. Immutable once built, so it may be shared between threads.
+ *
+ * @see XMLUtil#createXPathElementIndex(Document, String...)
+ */
+public class XPathElementIndex
+{
+  private static final String DOCUMENT_PROPERTY_NAME = XPathElementIndex.class.getName();
+
+  private final List<Element> elements;
+  private final Map<String, List<Element>> elementsByName;
+  private final Map<String, Map<String, List<Element>>> elementsByAttributeValue;
+
+  private XPathElementIndex(Set<String> indexedAttributeNames)
+  {
+    this.elements = new ArrayList<>();
+    this.elementsByName = new HashMap<>();
+    this.elementsByAttributeValue = new HashMap<>();
+
+    for (String attributeName : indexedAttributeNames)
+      elementsByAttributeValue.put(attributeName, new HashMap<>());
+  }
+
+  /**
+   * Build an index of a document's elements and attach it to the document, replacing any existing index.
+   *
+   * @param indexedAttributeNames the names of the unprefixed attributes whose values are indexed
+   */
+  public static XPathElementIndex createXPathElementIndex(Document document, Collection<String> indexedAttributeNames)
+  {
+    XPathElementIndex elementIndex = new XPathElementIndex(new LinkedHashSet<>(indexedAttributeNames));
+
+    if (document.hasRootElement())
+      elementIndex.addElement(document.getRootElement());
+
+    synchronized (document) {
+      document.setProperty(DOCUMENT_PROPERTY_NAME, elementIndex);
+    }
+    return elementIndex;
+  }
+
+  /**
+   * Return the element index attached to a document, or null if it has none.
+   */
+  public static XPathElementIndex getXPathElementIndex(Document document)
+  {
+    synchronized (document) {
+      Object elementIndex = document.getProperty(DOCUMENT_PROPERTY_NAME);
+
+      return elementIndex instanceof XPathElementIndex ? (XPathElementIndex)elementIndex : null;
+    }
+  }
+
+  /**
+   * Detach the element index from a document, so that evaluation walks the tree again.
+   */
+  public static void removeXPathElementIndex(Document document)
+  {
+    synchronized (document) {
+      document.setProperty(DOCUMENT_PROPERTY_NAME, null);
+    }
+  }
+
+  /**
+   * Every element in the document.
+   */
+  public List<Element> getElements()
+  {
+    return Collections.unmodifiableList(elements);
+  }
+
+  /**
+   * The elements with a local name in no namespace.
+   */
+  public List<Element> getElements(String localName)
+  {
+    return getElements("", localName);
+  }
+
+  public List<Element> getElements(String namespaceURI, String localName)
+  {
+    List<Element> namedElements = elementsByName.get(getExpandedName(namespaceURI, localName));
+
+    return namedElements == null ? Collections.<Element>emptyList() : Collections.unmodifiableList(namedElements);
+  }
+
+  public boolean isIndexedAttribute(String attributeName)
+  {
+    return elementsByAttributeValue.containsKey(attributeName);
+  }
+
+  public Set<String> getIndexedAttributeNames()
+  {
+    return Collections.unmodifiableSet(elementsByAttributeValue.keySet());
+  }
+
+  /**
+   * The elements with an unprefixed attribute of the given value. The attribute must be indexed.
+   */
+  public List<Element> getElementsByAttributeValue(String attributeName, String attributeValue)
+  {
+    Map<String, List<Element>> elementsByValue = elementsByAttributeValue.get(attributeName);
+
+    if (elementsByValue == null)
+      throw new IllegalArgumentException("attribute " + attributeName + " is not indexed");
+
+    List<Element> matchingElements = elementsByValue.get(attributeValue);
+
+    return matchingElements == null ? Collections.<Element>emptyList() :
+      Collections.unmodifiableList(matchingElements);
+  }
+
+  public int size()
+  {
+    return elements.size();
+  }
+
+  private void addElement(Element element)
+  {
+    elements.add(element);
+    elementsByName.computeIfAbsent(getExpandedName(element.getNamespaceURI(), element.getName()),
+      name -> new ArrayList<>()).add(element);
+
+    if (!elementsByAttributeValue.isEmpty()) {
+      for (Object attribute : element.getAttributes()) {
+        Attribute indexedAttribute = (Attribute)attribute;
+        Map<String, List<Element>> elementsByValue;
+
+        if (indexedAttribute.getNamespaceURI().isEmpty() &&
+          (elementsByValue = elementsByAttributeValue.get(indexedAttribute.getName())) != null)
+          elementsByValue.computeIfAbsent(indexedAttribute.getValue(), value -> new ArrayList<>(1)).add(element);
+      }
+    }
+
+    for (Object child : element.getChildren())
+      addElement((Element)child);
+  }
+
+  private static String getExpandedName(String namespaceURI, String localName)
+  {
+    return namespaceURI == null || namespaceURI.isEmpty() ? localName : "{" + namespaceURI + "}" + localName;
+  }
+
+  @Override public String toString()
+  {
+    return "XPathElementIndex{" +
+      "size=" + elements.size() +
+      ", names=" + elementsByName.size() +
+      ", indexedAttributeNames=" + elementsByAttributeValue.keySet() +
+      '}';
+  }
+}
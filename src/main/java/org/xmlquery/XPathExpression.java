@@ -10,6 +10,7 @@ public class XPathExpression
   private final String sourceName;
   private final String xPathExpression;
   private final String displayName;
+  private volatile CompiledXPathExpression compiledExpression;
 
   public XPathExpression(String sourceName, String xPathExpression, String displayName)
   {
@@ -75,6 +76,33 @@ public class XPathExpression
     return displayName;
   }
 
+  /**
+   * Return the precompiled form of this expression, compiling it with the shared cache in {@link XMLUtil} if
+   * it has not been compiled yet.
+   */
+  public CompiledXPathExpression getCompiledExpression() throws XMLQueryException
+  {
+    CompiledXPathExpression compiledExpression = this.compiledExpression;
+
+    if (compiledExpression == null) {
+      compiledExpression = XMLUtil.compileXPathExpression(xPathExpression);
+      this.compiledExpression = compiledExpression;
+    }
+    return compiledExpression;
+  }
+
+  /**
+   * Compile this expression with the supplied cache and hold on to the result.
+   */
+  public CompiledXPathExpression compile(XPathExpressionCache cache) throws XMLQueryException
+  {
+    CompiledXPathExpression compiledExpression = cache.getCompiledExpression(xPathExpression);
+
+    this.compiledExpression = compiledExpression;
+
+    return compiledExpression;
+  }
+
 
   @Override public String toString()
   {
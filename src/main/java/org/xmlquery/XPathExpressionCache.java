@@ -0,0 +1,165 @@
+package org.xmlquery;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache of {@link CompiledXPathExpression}s keyed by expression string and
+ * namespace context. The least recently used entry is evicted once the cache is full.
+ * <p>
+ * Compilation happens outside the cache lock, so two threads missing on the same expression at the same
+ * time may both compile it; only the first result is retained.
+ *
+ * @see CompiledXPathExpression
+ * @see XMLUtil#getXPathExpressionCache()
+ */
+public class XPathExpressionCache
+{
+  public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+
+  private final int maximumSize;
+  private final Map<CacheKey, CompiledXPathExpression> compiledExpressions;
+  private final AtomicLong hitCount, missCount, evictionCount;
+
+  public XPathExpressionCache()
+  {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  public XPathExpressionCache(int maximumSize)
+  {
+    if (maximumSize < 1)
+      throw new IllegalArgumentException("maximum cache size must be positive, got " + maximumSize);
+
+    this.maximumSize = maximumSize;
+    this.compiledExpressions = new LinkedHashMap<CacheKey, CompiledXPathExpression>(16, 0.75f, true)
+    {
+      @Override protected boolean removeEldestEntry(Map.Entry<CacheKey, CompiledXPathExpression> eldest)
+      {
+        if (size() > XPathExpressionCache.this.maximumSize) {
+          evictionCount.incrementAndGet();
+          return true;
+        } else
+          return false;
+      }
+    };
+    this.hitCount = new AtomicLong();
+    this.missCount = new AtomicLong();
+    this.evictionCount = new AtomicLong();
+  }
+
+  public CompiledXPathExpression getCompiledExpression(String xPathExpression) throws XMLQueryException
+  {
+    return getCompiledExpression(xPathExpression, Collections.<String, String>emptyMap());
+  }
+
+  /**
+   * Return the compiled form of an expression, compiling it on a miss.
+   *
+   * @param namespaces a map from namespace prefix to URI; may be empty
+   */
+  public CompiledXPathExpression getCompiledExpression(String xPathExpression, Map<String, String> namespaces)
+    throws XMLQueryException
+  {
+    CacheKey key = new CacheKey(xPathExpression, namespaces);
+    CompiledXPathExpression compiledExpression;
+
+    synchronized (compiledExpressions) {
+      compiledExpression = compiledExpressions.get(key);
+    }
+
+    if (compiledExpression != null) {
+      hitCount.incrementAndGet();
+      return compiledExpression;
+    }
+
+    missCount.incrementAndGet();
+    compiledExpression = new CompiledXPathExpression(xPathExpression, namespaces);
+
+    synchronized (compiledExpressions) {
+      CompiledXPathExpression existingExpression = compiledExpressions.get(key);
+      if (existingExpression != null)
+        return existingExpression;
+      compiledExpressions.put(new CacheKey(xPathExpression, compiledExpression.getNamespaces()), compiledExpression);
+    }
+    return compiledExpression;
+  }
+
+  public int getMaximumSize()
+  {
+    return maximumSize;
+  }
+
+  public int size()
+  {
+    synchronized (compiledExpressions) {
+      return compiledExpressions.size();
+    }
+  }
+
+  public long getHitCount()
+  {
+    return hitCount.get();
+  }
+
+  public long getMissCount()
+  {
+    return missCount.get();
+  }
+
+  public long getEvictionCount()
+  {
+    return evictionCount.get();
+  }
+
+  public void clear()
+  {
+    synchronized (compiledExpressions) {
+      compiledExpressions.clear();
+    }
+  }
+
+  @Override public String toString()
+  {
+    return "XPathExpressionCache{" +
+      "size=" + size() +
+      ", maximumSize=" + maximumSize +
+      ", hitCount=" + hitCount +
+      ", missCount=" + missCount +
+      ", evictionCount=" + evictionCount +
+      '}';
+  }
+
+  private static class CacheKey
+  {
+    private final String xPathExpression;
+    private final Map<String, String> namespaces;
+    private final int hashCode;
+
+    public CacheKey(String xPathExpression, Map<String, String> namespaces)
+    {
+      this.xPathExpression = xPathExpression;
+      this.namespaces = namespaces;
+      this.hashCode = 31 * xPathExpression.hashCode() + namespaces.hashCode();
+    }
+
+    @Override public boolean equals(Object o)
+    {
+      if (this == o)
+        return true;
+      if (!(o instanceof CacheKey))
+        return false;
+
+      CacheKey other = (CacheKey)o;
+      return hashCode == other.hashCode && xPathExpression.equals(other.xPathExpression) && namespaces
+        .equals(other.namespaces);
+    }
+
+    @Override public int hashCode()
+    {
+      return hashCode;
+    }
+  }
+}
@@ -6,13 +6,24 @@ import org.jdom.Element;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Take a list of {@link XPathExpression}s and generate a {@link XPathResultValueTable} with a column
  * for each expression. Expressions may be relative, in which case they get their context from their
  * closest leftmost node.
+ * <p>
+ * A processor with thread-safe key generators, as created by default, may be shared between threads. Keys
+ * generated for key expressions are consistent across all the documents it processes.
  *
  * @see XPathExpression
  * @see XPathResultValueTable
@@ -20,87 +31,709 @@ import java.util.Map;
  */
 public class XPathExpressionProcessor
 {
-  private SimpleShortKeyGenerator expressionKeyGenerator, valueKeyGenerator;
+  private final XPathKeyGenerator expressionKeyGenerator, valueKeyGenerator;
+  private final int resultCacheSize;
+  private final AtomicLong resultCacheHitCount, resultCacheMissCount;
+  private final XPathProcessorMetrics metrics;
+  private final boolean isRecordingMetrics;
+  private final XPathValueInterner valueInterner;
+  private final boolean isTrackingLocations;
 
   public XPathExpressionProcessor()
   {
-    this.expressionKeyGenerator = new SimpleShortKeyGenerator();
-    this.valueKeyGenerator = new SimpleShortKeyGenerator();
+    this(new ConcurrentShortKeyGenerator(), new ConcurrentShortKeyGenerator());
+  }
+
+  /**
+   * Create a processor with its own key generation strategies. The generators must be thread-safe if the
+   * processor is shared between threads; a single generator may be shared between several processors.
+   */
+  public XPathExpressionProcessor(XPathKeyGenerator expressionKeyGenerator, XPathKeyGenerator valueKeyGenerator)
+  {
+    this(expressionKeyGenerator, valueKeyGenerator, 0);
+  }
+
+  /**
+   * Create a processor that caches the nodes selected by each expression from each context node, so that
+   * running expression lists against the same document again does not re-evaluate them.
+   *
+   * @param resultCacheSize the maximum number of cached results per document, or 0 to disable caching
+   * @see XPathResultCache
+   */
+  public XPathExpressionProcessor(XPathKeyGenerator expressionKeyGenerator, XPathKeyGenerator valueKeyGenerator,
+    int resultCacheSize)
+  {
+    this(expressionKeyGenerator, valueKeyGenerator, resultCacheSize, XPathProcessorMetrics.NO_OP);
+  }
+
+  /**
+   * Create a processor that reports its work to a metrics implementation.
+   *
+   * @param resultCacheSize the maximum number of cached results per document, or 0 to disable caching
+   * @see AccumulatingXPathProcessorMetrics
+   */
+  public XPathExpressionProcessor(XPathKeyGenerator expressionKeyGenerator, XPathKeyGenerator valueKeyGenerator,
+    int resultCacheSize, XPathProcessorMetrics metrics)
+  {
+    this(expressionKeyGenerator, valueKeyGenerator, resultCacheSize, metrics, null);
+  }
+
+  /**
+   * Create a processor that deduplicates the values of the result cells it creates, so that low-cardinality
+   * columns share value instances.
+   *
+   * @param resultCacheSize the maximum number of cached results per document, or 0 to disable caching
+   * @param valueInterner   the interner for result values, or null to keep every value as it is created
+   * @see XPathValueInterner
+   */
+  public XPathExpressionProcessor(XPathKeyGenerator expressionKeyGenerator, XPathKeyGenerator valueKeyGenerator,
+    int resultCacheSize, XPathProcessorMetrics metrics, XPathValueInterner valueInterner)
+  {
+    this(expressionKeyGenerator, valueKeyGenerator, resultCacheSize, metrics, valueInterner, true);
+  }
+
+  /**
+   * Create a processor that may skip tracking the absolute locations of the nodes it matches. Result values
+   * build their location only when it is first requested, except for expression keys, whose locations are
+   * built to generate the key; without location tracking, result values have none. Expression keys are still
+   * generated from the locations of their nodes.
+   *
+   * @param resultCacheSize     the maximum number of cached results per document, or 0 to disable caching
+   * @param valueInterner       the interner for result values, or null to keep every value as it is created
+   * @param isTrackingLocations whether result values have absolute locations
+   */
+  public XPathExpressionProcessor(XPathKeyGenerator expressionKeyGenerator, XPathKeyGenerator valueKeyGenerator,
+    int resultCacheSize, XPathProcessorMetrics metrics, XPathValueInterner valueInterner,
+    boolean isTrackingLocations)
+  {
+    if (resultCacheSize < 0)
+      throw new IllegalArgumentException("result cache size must not be negative, got " + resultCacheSize);
+
+    this.expressionKeyGenerator = expressionKeyGenerator;
+    this.valueKeyGenerator = valueKeyGenerator;
+    this.resultCacheSize = resultCacheSize;
+    this.resultCacheHitCount = new AtomicLong();
+    this.resultCacheMissCount = new AtomicLong();
+    this.metrics = metrics;
+    this.isRecordingMetrics = metrics != XPathProcessorMetrics.NO_OP;
+    this.valueInterner = valueInterner;
+    this.isTrackingLocations = isTrackingLocations;
+  }
+
+  public XPathKeyGenerator getExpressionKeyGenerator()
+  {
+    return expressionKeyGenerator;
+  }
+
+  public XPathKeyGenerator getValueKeyGenerator()
+  {
+    return valueKeyGenerator;
+  }
+
+  public XPathProcessorMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * The interner for result values, or null if values are not deduplicated.
+   */
+  public XPathValueInterner getValueInterner()
+  {
+    return valueInterner;
+  }
+
+  /**
+   * Whether the result values created by this processor have absolute locations.
+   */
+  public boolean isTrackingLocations()
+  {
+    return isTrackingLocations;
+  }
+
+  boolean isRecordingMetrics()
+  {
+    return isRecordingMetrics;
+  }
+
+  public int getResultCacheSize()
+  {
+    return resultCacheSize;
+  }
+
+  /**
+   * The number of evaluations by this processor answered from a document's result cache.
+   */
+  public long getResultCacheHitCount()
+  {
+    return resultCacheHitCount.get();
+  }
+
+  /**
+   * The number of evaluations by this processor that missed a document's result cache.
+   */
+  public long getResultCacheMissCount()
+  {
+    return resultCacheMissCount.get();
   }
 
   public XPathResultValueTable processXPathExpressions(Document document, List<XPathExpression> expressions,
     XPathResultValueTable accumulatedXPathResultValueTable) throws XMLQueryException
   {
-    XPathResultValueTable resultTable = new XPathResultValueTable(accumulatedXPathResultValueTable.getTableName(),
-      accumulatedXPathResultValueTable.getColumnNames());
+    return processXPathExpressions(document, expressions, accumulatedXPathResultValueTable,
+      XPathProcessingLimits.UNLIMITED);
+  }
 
-    for (XPathExpression expression : expressions)
-      resultTable = generateXPathResultValueTable(document, expression, resultTable);
+  /**
+   * Generate a result table whose size is bounded by a set of limits. With {@link
+   * XPathProcessingLimits.LimitAction#FAIL} the table's size is first estimated, and an
+   * {@link XPathLimitExceededException} is thrown before expansion if the estimate is over the row or cell
+   * limit; an estimate is made from a sample, so a table close to a limit may be rejected early. The limits are
+   * also checked as each row is added. With {@link XPathProcessingLimits.LimitAction#TRUNCATE} the table holds
+   * the rows added before a limit was reached.
+   * <p>
+   * The overloads for a {@link CompactDocument} and for a {@link XPathQuerySession} check the same limits as each
+   * row is added, without an estimate. Other ways of generating a table, including parallel and multi-table
+   * processing, are not bounded.
+   *
+   * @see #estimateCardinality(Document, List)
+   */
+  public XPathResultValueTable processXPathExpressions(Document document, List<XPathExpression> expressions,
+    XPathResultValueTable accumulatedXPathResultValueTable, XPathProcessingLimits limits) throws XMLQueryException
+  {
+    XPathResultValueTable resultTable = accumulatedXPathResultValueTable.createEmptyTable();
+    XPathQueryPlan plan = XPathQueryPlan.createPlan(expressions, metrics);
+    XPathResultCache resultCache = getXPathResultCache(document);
+    Map<Integer, List<Object>> documentSelections = null;
+
+    if (limits.getLimitAction() == XPathProcessingLimits.LimitAction.FAIL &&
+      (limits.getMaximumRowCount() != Long.MAX_VALUE || limits.getMaximumCellCount() != Long.MAX_VALUE)) {
+      documentSelections = new HashMap<>(); // The estimate's evaluations against the document, for the expansion
+      checkEstimatedCardinality(XPathCardinalityEstimate.estimate(plan, document,
+        XPathCardinalityEstimate.DEFAULT_SAMPLE_SIZE, resultCache, documentSelections), limits);
+    }
+
+    XPathResultRowIterator rows = new XPathResultRowIterator(this, document, plan,
+      XPathLocationIndex.getXPathLocationIndex(document), resultCache, documentSelections);
+
+    try {
+      addRowsWithinLimits(rows, resultTable, limits);
+    } catch (UncheckedXMLQueryException e) {
+      throw e.getCause();
+    } finally {
+      rows.finish();
+    }
 
     return resultTable;
   }
 
-  private XPathResultValueTable generateXPathResultValueTable(Document document, XPathExpression xPathExpression,
+  /**
+   * Generate several tables from one document in a single pass. Each table is named by its key in the map and
+   * has a column for each of its expressions, named by the expression's display name, holding the same rows as
+   * {@link #processXPathExpressions(Document, List, XPathResultValueTable)} produces for its expressions alone.
+   * Tables whose expression lists start with the same expressions share the evaluation of those columns, and an
+   * expression used by several tables is evaluated once for each context node. The tables' sizes are not
+   * bounded by {@link XPathProcessingLimits}.
+   *
+   * @param tableExpressions the expression list of each table, by table name
+   * @return the result tables, by table name, in the order of the map's entries
+   */
+  public Map<String, XPathResultValueTable> processXPathExpressions(Document document,
+    Map<String, List<XPathExpression>> tableExpressions) throws XMLQueryException
+  {
+    XPathMultiTableEvaluator evaluator = new XPathMultiTableEvaluator(this, document);
+    Map<String, XPathResultValueTable> resultTables = new LinkedHashMap<>();
+
+    for (Map.Entry<String, List<XPathExpression>> entry : tableExpressions.entrySet()) {
+      List<String> columnNames = new ArrayList<>(entry.getValue().size());
+
+      for (XPathExpression expression : entry.getValue())
+        columnNames.add(expression.getDisplayName());
+
+      XPathResultValueTable resultTable = new XPathResultValueTable(entry.getKey(), columnNames);
+      evaluator.addTable(entry.getValue(), resultTable);
+      resultTables.put(entry.getKey(), resultTable);
+    }
+    evaluator.evaluate();
+
+    return resultTables;
+  }
+
+  /**
+   * Generate the rows of {@link #processXPathExpressions(Document, List, XPathResultValueTable)} using the common
+   * fork/join pool.
+   *
+   * @see #processXPathExpressionsInParallel(Document, List, XPathResultValueTable, ForkJoinPool)
+   */
+  public XPathResultValueTable processXPathExpressionsInParallel(Document document, List<XPathExpression> expressions,
     XPathResultValueTable accumulatedXPathResultValueTable) throws XMLQueryException
   {
-    XPathResultValueTable newAccumlatedResult = new XPathResultValueTable(
-      accumulatedXPathResultValueTable.getTableName());
-    newAccumlatedResult.setColumnNames(accumulatedXPathResultValueTable.getColumnNames());
+    return processXPathExpressionsInParallel(document, expressions, accumulatedXPathResultValueTable,
+      ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Generate the rows of {@link #processXPathExpressions(Document, List, XPathResultValueTable)}, in the same
+   * order, splitting them between the threads of a fork/join pool. Rows are independent, since each column is
+   * evaluated against only the rightmost node of its own row, so a single large document can use every core.
+   * <p>
+   * Generated keys are not numbered in row order: each key is generated by whichever thread first evaluates its
+   * node or value, so with a numbering generator such as the default one the keys in a table, though consistent
+   * within it and with later tables, differ from run to run and from the sequential table. Use the sequential
+   * method where key numbers must be reproducible.
+   * <p>
+   * The processor's key generators must be thread-safe, as the default ones are, and the document must not be
+   * modified while it is processed. The table's size is not bounded by {@link XPathProcessingLimits}.
+   */
+  public XPathResultValueTable processXPathExpressionsInParallel(Document document, List<XPathExpression> expressions,
+    XPathResultValueTable accumulatedXPathResultValueTable, ForkJoinPool pool) throws XMLQueryException
+  {
+    XPathResultValueTable resultTable = accumulatedXPathResultValueTable.createEmptyTable();
+    XPathQueryPlan plan = XPathQueryPlan.createPlan(expressions, metrics);
+    XPathResultRowIterator prototype = createRowIterator(document, plan);
 
-    if (accumulatedXPathResultValueTable.isEmpty()) { // Build the rows in the first column
-      List<XPathResultValue> firstColumn = generateResultValuesColumnForNode("/", document, xPathExpression);
+    try {
+      if (plan.getColumnCount() > 0 && prototype.evaluateContextFreeColumns()) {
+        XPathParallelRowExpansion expansion = new XPathParallelRowExpansion(prototype, plan.getColumnCount(),
+          new XPathResultValue[0], prototype.evaluateColumnConcurrently(0, document));
 
-      for (XPathResultValue cell : firstColumn) {
-        List<XPathResultValue> newRow = new ArrayList<>();
-        newRow.add(cell);
-        newAccumlatedResult.addRow(newRow);
+        pool.invoke(expansion);
+        expansion.addRowsTo(resultTable);
       }
-    } else { // Expand additional columns
-      for (List<XPathResultValue> currentRow : accumulatedXPathResultValueTable.getRows()) {
-        //XPathGeneratedResultValue mostRecentResultValueWithAbsolutePathInRow = getMostRecentResultValueWithAbsolutePath(currentRow);
-        XPathResultValue mostRecentResultValueWithAbsolutePathInRow = getMostRecentResultValue(currentRow);
-        Object mostRecentAbsoluteNodeInRow = mostRecentResultValueWithAbsolutePathInRow.getNode();
-        String xPathLocationOfMostRecentAbsoluteNodeInRow = mostRecentResultValueWithAbsolutePathInRow
-          .getXPathAbsoluteLocation();
-        List<XPathResultValue> resultValuesColumnForNode = generateResultValuesColumnForNode(
-          xPathLocationOfMostRecentAbsoluteNodeInRow, mostRecentAbsoluteNodeInRow, xPathExpression);
-
-        for (XPathResultValue resultValueForNode : resultValuesColumnForNode) {
-          List<XPathResultValue> newRow = new ArrayList<>(currentRow);
-          newRow.add(resultValueForNode);
-          newAccumlatedResult.addRow(newRow);
-        }
+    } catch (UncheckedXMLQueryException e) {
+      throw e.getCause();
+    } finally {
+      prototype.finish();
+    }
+
+    return resultTable;
+  }
+
+  /**
+   * Estimate the size of the result table for a document without expanding it.
+   */
+  public XPathCardinalityEstimate estimateCardinality(Document document, List<XPathExpression> expressions)
+    throws XMLQueryException
+  {
+    return estimateCardinality(document, expressions, XPathCardinalityEstimate.DEFAULT_SAMPLE_SIZE);
+  }
+
+  /**
+   * @param sampleSize the maximum number of context nodes each column is evaluated against
+   */
+  public XPathCardinalityEstimate estimateCardinality(Document document, List<XPathExpression> expressions,
+    int sampleSize) throws XMLQueryException
+  {
+    return XPathCardinalityEstimate.estimate(XPathQueryPlan.createPlan(expressions, metrics), document, sampleSize,
+      getXPathResultCache(document), null);
+  }
+
+  /**
+   * Return an iterator that evaluates the expressions lazily and yields the rows of the result table one at a
+   * time, in the order {@link #processXPathExpressions} would add them. Evaluation errors are thrown from the
+   * iterator as {@link UncheckedXMLQueryException}s.
+   * <p>
+   * Absolute expressions are evaluated once per document rather than once per row, and other expressions once
+   * per run of consecutive rows with the same context node; see {@link XPathQueryPlan}.
+   * <p>
+   * The document is reported to the metrics as processed when the iterator is exhausted, so an iterator that is
+   * abandoned early does not report it.
+   */
+  public Iterator<List<XPathResultValue>> iterateXPathExpressions(Document document, List<XPathExpression> expressions)
+    throws XMLQueryException
+  {
+    return createRowIterator(document, expressions);
+  }
+
+  /**
+   * Return an iterator over the rows for a document, which the caller {@link XPathResultRowIterator#finish()}es
+   * if it may stop before the last row.
+   */
+  XPathResultRowIterator createRowIterator(Document document, List<XPathExpression> expressions)
+    throws XMLQueryException
+  {
+    return createRowIterator(document, XPathQueryPlan.createPlan(expressions, metrics));
+  }
+
+  private XPathResultRowIterator createRowIterator(Document document, XPathQueryPlan plan)
+  {
+    return new XPathResultRowIterator(this, document, plan, XPathLocationIndex.getXPathLocationIndex(document),
+      getXPathResultCache(document));
+  }
+
+  /**
+   * Generate a result table from a {@link CompactDocument}. The table is the same as for the JDOM document the
+   * compact document was copied from, except that each result value's node is a {@link CompactDocument.Node}, so
+   * the table does not keep a document tree alive.
+   */
+  public XPathResultValueTable processXPathExpressions(CompactDocument document, List<XPathExpression> expressions,
+    XPathResultValueTable accumulatedXPathResultValueTable) throws XMLQueryException
+  {
+    return processXPathExpressions(document, expressions, accumulatedXPathResultValueTable,
+      XPathProcessingLimits.UNLIMITED);
+  }
+
+  /**
+   * Generate a result table from a {@link CompactDocument} whose size is bounded by a set of limits. The limits
+   * are checked as each row is added, as for a JDOM document, but the table's size is not estimated first.
+   */
+  public XPathResultValueTable processXPathExpressions(CompactDocument document, List<XPathExpression> expressions,
+    XPathResultValueTable accumulatedXPathResultValueTable, XPathProcessingLimits limits) throws XMLQueryException
+  {
+    XPathResultValueTable resultTable = accumulatedXPathResultValueTable.createEmptyTable();
+    XPathResultRowIterator rows = new XPathResultRowIterator(this, document,
+      XPathQueryPlan.createPlan(expressions, metrics));
+
+    try {
+      addRowsWithinLimits(rows, resultTable, limits);
+    } catch (UncheckedXMLQueryException e) {
+      throw e.getCause();
+    } finally {
+      rows.finish();
+    }
+
+    return resultTable;
+  }
+
+  /**
+   * Return an iterator over the rows for a {@link CompactDocument}, as {@link #iterateXPathExpressions(Document,
+   * List)} does for a JDOM document.
+   */
+  public Iterator<List<XPathResultValue>> iterateXPathExpressions(CompactDocument document,
+    List<XPathExpression> expressions) throws XMLQueryException
+  {
+    return new XPathResultRowIterator(this, document, XPathQueryPlan.createPlan(expressions, metrics));
+  }
+
+  /**
+   * Return a sequential, ordered stream of the rows produced by {@link #iterateXPathExpressions}. Closing the
+   * stream reports the document to the metrics as processed even if not every row was consumed.
+   */
+  public Stream<List<XPathResultValue>> streamXPathExpressions(Document document, List<XPathExpression> expressions)
+    throws XMLQueryException
+  {
+    XPathResultRowIterator rows = createRowIterator(document, expressions);
+
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED | Spliterator.NONNULL),
+      false).onClose(rows::finish);
+  }
+
+  private static void checkEstimatedCardinality(XPathCardinalityEstimate estimate, XPathProcessingLimits limits)
+    throws XPathLimitExceededException
+  {
+    XPathLimitExceededException exceeded = findExceededLimit(limits, estimate.getEstimatedRowCount(),
+      estimate.getEstimatedCellCount(), 0);
+
+    if (exceeded == null)
+      return;
+
+    int widestColumn = estimate.getWidestColumn();
+    throw new XPathLimitExceededException("result table is estimated at " + exceeded.getCount() + " " +
+      exceeded.getLimitName() + "s, over the limit of " + exceeded.getLimit() + "; column " + widestColumn + " (" +
+      estimate.getExpression(widestColumn).getXPathExpression() + ") has an estimated fan-out of " +
+      String.format("%.1f", estimate.getEstimatedFanOut(widestColumn)), exceeded.getLimitName(),
+      exceeded.getLimit(), exceeded.getCount());
+  }
+
+  /**
+   * Add rows to a table until one would take it over a limit, then either throw or stop, as the limits' action
+   * says.
+   */
+  static void addRowsWithinLimits(Iterator<List<XPathResultValue>> rows, XPathResultValueTable resultTable,
+    XPathProcessingLimits limits) throws XPathLimitExceededException
+  {
+    boolean isCountingBytes = limits.getMaximumByteCount() != Long.MAX_VALUE; // Reads every value
+    long rowCount = 0, cellCount = 0, byteCount = 0;
+
+    while (rows.hasNext()) {
+      List<XPathResultValue> row = rows.next();
+
+      rowCount++;
+      cellCount += row.size();
+      if (isCountingBytes)
+        for (XPathResultValue value : row)
+          byteCount += XPathProcessingLimits.estimateByteCount(value);
+
+      XPathLimitExceededException exceeded = findExceededLimit(limits, rowCount, cellCount, byteCount);
+      if (exceeded != null) {
+        if (limits.getLimitAction() == XPathProcessingLimits.LimitAction.FAIL)
+          throw exceeded;
+        break;
       }
+      resultTable.addRow(row);
     }
+  }
+
+  /**
+   * Return an exception naming the first limit, in the order rows, cells, bytes, that a table of the given size
+   * exceeds, or null if it is within every limit.
+   */
+  private static XPathLimitExceededException findExceededLimit(XPathProcessingLimits limits, long rowCount,
+    long cellCount, long byteCount)
+  {
+    String limitName;
+    long limit, count;
+
+    if (rowCount > limits.getMaximumRowCount()) {
+      limitName = "row";
+      limit = limits.getMaximumRowCount();
+      count = rowCount;
+    } else if (cellCount > limits.getMaximumCellCount()) {
+      limitName = "cell";
+      limit = limits.getMaximumCellCount();
+      count = cellCount;
+    } else if (byteCount > limits.getMaximumByteCount()) {
+      limitName = "byte";
+      limit = limits.getMaximumByteCount();
+      count = byteCount;
+    } else
+      return null;
 
-    return newAccumlatedResult;
+    return new XPathLimitExceededException("result table exceeds the limit of " + limit + " " + limitName + "s",
+      limitName, limit, count);
   }
 
-  private List<XPathResultValue> generateResultValuesColumnForNode(String contextXPathLocation, Object context,
+  /**
+   * Return a string that is equal for two expressions that produce the same column given the same context. When
+   * this processor interns values the display name is included, since values are interned and counted under
+   * the name of their column.
+   */
+  String getEquivalenceKey(XPathExpression expression)
+  {
+    String key = (expression.isExpressionKey() ? "E" : expression.isValueKey() ? "V" : "-") +
+      expression.getSourceURI() + '\u0000' + expression.getXPathExpression();
+
+    return valueInterner == null ? key : key + '\u0000' + expression.getDisplayName();
+  }
+
+  /**
+   * Parse an XML file, recording the parse time in this processor's metrics.
+   */
+  Document parseXMLStream(String inputXMLStreamName) throws XMLQueryException
+  {
+    if (!isRecordingMetrics)
+      return XMLUtil.processXMLStream(inputXMLStreamName);
+
+    long startNanos = System.nanoTime();
+    Document document = XMLUtil.processXMLStream(inputXMLStreamName);
+    metrics.documentParsed(inputXMLStreamName, System.nanoTime() - startNanos);
+    return document;
+  }
+
+  /**
+   * Return the result cache to use for a document, or null if caching is disabled.
+   */
+  XPathResultCache getXPathResultCache(Document document)
+  {
+    return resultCacheSize > 0 ? XPathResultCache.getXPathResultCache(document, resultCacheSize) : null;
+  }
+
+  /**
+   * @param resultCache the result cache for the context's document; may be null
+   */
+  List<XPathResultValue> generateResultValuesColumnForNode(Object context, XPathExpression xPathExpression,
+    XPathLocationIndex locationIndex, XPathResultCache resultCache) throws XMLQueryException
+  {
+    long startNanos = isRecordingMetrics ? System.nanoTime() : 0;
+    List<Object> resultNodes = selectNodes(context, xPathExpression.getCompiledExpression(), resultCache);
+
+    if (isRecordingMetrics)
+      metrics.expressionEvaluated(xPathExpression, System.nanoTime() - startNanos, resultNodes.size());
+
+    return generateResultValuesColumn(resultNodes, xPathExpression, locationIndex);
+  }
+
+  /**
+   * Create the result values for nodes already selected by an expression.
+   */
+  List<XPathResultValue> generateResultValuesColumn(List<Object> resultNodes, XPathExpression xPathExpression,
+    XPathLocationIndex locationIndex) throws XMLQueryException
+  {
+    List<XPathResultValue> generatedResultValues = new ArrayList<>(resultNodes.size());
+    ColumnResolver resolver = new DocumentResolver(locationIndex);
+
+    for (Object resultNode : resultNodes) {
+      if (!XMLUtil.isElementNode(resultNode) && !XMLUtil.isAttributeNode(resultNode))
+        throw new XMLQueryException("unsupported node type " + resultNode.getClass());
+
+      generatedResultValues.add(createResultValue(xPathExpression, resultNode, resolver));
+    }
+    return generatedResultValues;
+  }
+
+  /**
+   * Evaluate an expression against a node ID of a compact document.
+   */
+  List<XPathResultValue> generateResultValuesColumnForNode(CompactDocument document, Object context,
     XPathExpression xPathExpression) throws XMLQueryException
   {
-    List<XPathResultValue> generatedResultValues = new ArrayList<>();
+    long startNanos = isRecordingMetrics ? System.nanoTime() : 0;
+    List<Object> resultNodes = xPathExpression.getCompiledExpression().selectNodes(document, context);
+    List<XPathResultValue> generatedResultValues = new ArrayList<>(resultNodes.size());
+    ColumnResolver resolver = new CompactDocumentResolver(document);
+
+    if (isRecordingMetrics)
+      metrics.expressionEvaluated(xPathExpression, System.nanoTime() - startNanos, resultNodes.size());
 
-    for (Object resultNode : XMLUtil.executeXPathExpression(context, xPathExpression.getXPathExpression())) {
-      String value = node2StringValue(resultNode);
-      String resultXPathLocation = XMLUtil.getAbsoluteXPathLocation(resultNode);
-      XPathResultValue generatedResultValue;
+    for (Object resultNode : resultNodes) {
+      int nodeId = CompactDocument.getNodeId(resultNode);
 
-      if (xPathExpression.isExpressionKey())
-        generatedResultValue = new XPathResultValue(xPathExpression.getXPathExpression(), resultXPathLocation,
-          resultNode, expressionKeyGenerator.getKey(xPathExpression.getSourceURI(), resultXPathLocation));
-      else if (xPathExpression.isValueKey())
-        generatedResultValue = new XPathResultValue(xPathExpression.getXPathExpression(), resultXPathLocation,
-          resultNode, valueKeyGenerator.getKey(xPathExpression.getSourceURI(), value.toString()));
-      else
-        generatedResultValue = new XPathResultValue(xPathExpression.getXPathExpression(), resultXPathLocation,
-          resultNode, value);
+      if (!document.isElement(nodeId) && !document.isAttribute(nodeId))
+        throw new XMLQueryException("unsupported node type " + document.getNodeKind(nodeId));
 
-      generatedResultValues.add(generatedResultValue);
+      generatedResultValues.add(createResultValue(xPathExpression, resultNode, resolver));
     }
     return generatedResultValues;
   }
 
+  private List<Object> selectNodes(Object context, CompiledXPathExpression xPathExpression,
+    XPathResultCache resultCache) throws XMLQueryException
+  {
+    if (resultCache == null)
+      return XMLUtil.executeXPathExpression(context, xPathExpression);
+
+    List<Object> nodes = resultCache.getSelectedNodes(context, xPathExpression);
+
+    if (nodes != null) {
+      resultCacheHitCount.incrementAndGet();
+      return nodes;
+    } else {
+      resultCacheMissCount.incrementAndGet();
+      return resultCache.putSelectedNodes(context, xPathExpression,
+        XMLUtil.executeXPathExpression(context, xPathExpression));
+    }
+  }
+
+  /**
+   * Create a result value for a matched node, replacing its value with a generated key if the expression is a
+   * key expression. The value is interned if the processor has a value interner.
+   */
+  XPathResultValue createResultValue(XPathExpression xPathExpression, String resultXPathLocation, Object resultNode,
+    String value) throws XMLQueryException
+  {
+    return new XPathResultValue(xPathExpression.getXPathExpression(), isTrackingLocations ? resultXPathLocation : null,
+      resultNode, generateResultValue(xPathExpression, resultXPathLocation, value));
+  }
+
+  /**
+   * Create a result value for a node of a supported type. Keys are generated and values interned now, in
+   * evaluation order; a plain value and the node's location are left for the result value to read when first
+   * requested.
+   */
+  private XPathResultValue createResultValue(XPathExpression xPathExpression, Object resultNode,
+    ColumnResolver resolver) throws XMLQueryException
+  {
+    if (xPathExpression.isExpressionKey()) { // The key is generated from the location, so it is computed now
+      String location = resolver.computeAbsoluteXPathLocation(resultNode);
+
+      return new XPathResultValue(xPathExpression.getXPathExpression(), isTrackingLocations ? location : null,
+        resultNode, generateResultValue(xPathExpression, location, null));
+    } else if (xPathExpression.isValueKey() || valueInterner != null)
+      return new XPathResultValue(xPathExpression.getXPathExpression(), resultNode,
+        generateResultValue(xPathExpression, null, resolver.resolveValue(resultNode)), resolver);
+    else
+      return new XPathResultValue(xPathExpression.getXPathExpression(), resultNode, resolver);
+  }
+
+  private String generateResultValue(XPathExpression xPathExpression, String resultXPathLocation, String value)
+    throws XMLQueryException
+  {
+    String resultValue;
+
+    if (xPathExpression.isExpressionKey())
+      resultValue = expressionKeyGenerator.getKey(xPathExpression.getSourceURI(), resultXPathLocation);
+    else if (xPathExpression.isValueKey())
+      resultValue = valueKeyGenerator.getKey(xPathExpression.getSourceURI(), value);
+    else
+      resultValue = value;
+
+    if (valueInterner != null)
+      resultValue = valueInterner.intern(xPathExpression.getDisplayName(), resultValue);
+
+    return resultValue;
+  }
+
+  /**
+   * Reads the plain values and locations of one column's result values from their nodes when they are requested.
+   * Nodes are checked to be elements or attributes before their result values are created, so reading them only
+   * fails if the document was changed since.
+   */
+  private abstract class ColumnResolver implements XPathResultValue.Resolver
+  {
+    abstract String getNodeValue(Object node) throws XMLQueryException;
+
+    abstract String getAbsoluteXPathLocation(Object node) throws XMLQueryException;
+
+    @Override public String resolveValue(Object node)
+    {
+      try {
+        return getNodeValue(node);
+      } catch (XMLQueryException e) {
+        throw new IllegalStateException("result node is no longer an element or attribute", e);
+      }
+    }
+
+    @Override public String resolveXPathAbsoluteLocation(Object node)
+    {
+      try {
+        return isTrackingLocations ? computeAbsoluteXPathLocation(node) : null;
+      } catch (XMLQueryException e) {
+        throw new IllegalStateException("result node is no longer an element or attribute", e);
+      }
+    }
+
+    String computeAbsoluteXPathLocation(Object node) throws XMLQueryException
+    {
+      if (!isRecordingMetrics)
+        return getAbsoluteXPathLocation(node);
+
+      long startNanos = System.nanoTime();
+      String location = getAbsoluteXPathLocation(node);
+      metrics.locationsComputed(1, System.nanoTime() - startNanos);
+      return location;
+    }
+  }
+
+  private class DocumentResolver extends ColumnResolver
+  {
+    private final XPathLocationIndex locationIndex;
+
+    DocumentResolver(XPathLocationIndex locationIndex)
+    {
+      this.locationIndex = locationIndex;
+    }
+
+    @Override String getNodeValue(Object node) throws XMLQueryException
+    {
+      return node2StringValue(node);
+    }
+
+    @Override String getAbsoluteXPathLocation(Object node) throws XMLQueryException
+    {
+      return locationIndex.getAbsoluteXPathLocation(node);
+    }
+  }
+
+  private class CompactDocumentResolver extends ColumnResolver
+  {
+    private final CompactDocument document;
+
+    CompactDocumentResolver(CompactDocument document)
+    {
+      this.document = document;
+    }
+
+    @Override String getNodeValue(Object node) throws XMLQueryException
+    {
+      return document.getValue(CompactDocument.getNodeId(node));
+    }
+
+    @Override String getAbsoluteXPathLocation(Object node) throws XMLQueryException
+    {
+      return document.getAbsoluteXPathLocation(CompactDocument.getNodeId(node));
+    }
+  }
+
   @SuppressWarnings("unused") private XPathResultValue getMostRecentResultValueWithAbsolutePath(
     List<XPathResultValue> resultValues) throws XMLQueryException
   {
@@ -111,14 +744,6 @@ public class XPathExpressionProcessor
     throw new XMLQueryException("must be at least one absolute path in generator expressions - none found");
   }
 
-  private XPathResultValue getMostRecentResultValue(List<XPathResultValue> resultValues) throws XMLQueryException
-  {
-    if (!resultValues.isEmpty())
-      return resultValues.get(resultValues.size() - 1);
-    else
-      throw new XMLQueryException("must be at least one absolute path in generator expressions - none found");
-  }
-
   private String node2StringValue(Object node) throws XMLQueryException
   {
     if (XMLUtil.isElementNode(node)) {
@@ -132,31 +757,4 @@ public class XPathExpressionProcessor
     } else
       throw new XMLQueryException("unsupported node type " + node.getClass());
   }
-
-  private class SimpleShortKeyGenerator
-  {
-    private Map<String, String> keyMap;
-    private Long currentKey;
-
-    public SimpleShortKeyGenerator()
-    {
-      keyMap = new HashMap<>();
-      currentKey = 0L;
-    }
-
-    public String getKey(String uri, String value) throws XMLQueryException
-    {
-      String compoundValue = uri + ":" + value;
-
-      if (keyMap.containsKey(compoundValue))
-        return keyMap.get(compoundValue);
-      else {
-        if (currentKey == Long.MAX_VALUE)
-          throw new XMLQueryException("maximum number of keys generated");
-        currentKey++;
-        keyMap.put(compoundValue, currentKey.toString());
-        return currentKey.toString();
-      }
-    }
-  }
 }
@@ -0,0 +1,65 @@
+package org.xmlquery;
+
+/**
+ * Interfaces for demand-driven publication of results, with the same methods and rules as the Reactive
+ * Streams interfaces nested in {@code java.util.concurrent.Flow} and declared in {@code org.reactivestreams}.
+ * They are declared here so the library keeps running on Java 8 without further dependencies; each adapts to
+ * its counterpart in either with one line per method.
+ *
+ * @see XPathAsyncProcessor
+ */
+public final class XPathFlow
+{
+  private XPathFlow()
+  {
+  }
+
+  /**
+   * A source of items that sends each subscriber only as many items as it has requested.
+   */
+  public interface Publisher<T>
+  {
+    /**
+     * Add a subscriber, which is first given its {@link Subscription} through
+     * {@link Subscriber#onSubscribe(Subscription)}.
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+  }
+
+  /**
+   * Receives items from a publisher. Methods are called by one thread at a time, in order.
+   */
+  public interface Subscriber<T>
+  {
+    void onSubscribe(Subscription subscription);
+
+    void onNext(T item);
+
+    /**
+     * The publication failed; no further methods are called.
+     */
+    void onError(Throwable throwable);
+
+    /**
+     * Every item has been delivered; no further methods are called.
+     */
+    void onComplete();
+  }
+
+  /**
+   * The link between a publisher and one subscriber.
+   */
+  public interface Subscription
+  {
+    /**
+     * Add to the number of items the subscriber is ready to receive. A request for {@link Long#MAX_VALUE} items
+     * removes the bound; a request for less than one item fails the subscription.
+     */
+    void request(long n);
+
+    /**
+     * Stop delivering items. Items already being delivered may still arrive.
+     */
+    void cancel();
+  }
+}
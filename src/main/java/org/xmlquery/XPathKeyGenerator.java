@@ -0,0 +1,21 @@
+package org.xmlquery;
+
+/**
+ * Generates the key stored in place of a value for {@link XPathExpression}s that are expression or value keys.
+ * A generator must return the same key every time it is given the same source URI and value, and different
+ * keys for different pairs.
+ *
+ * @see XPathExpressionProcessor#XPathExpressionProcessor(XPathKeyGenerator, XPathKeyGenerator)
+ * @see SimpleShortKeyGenerator
+ * @see ConcurrentShortKeyGenerator
+ * @see HashKeyGenerator
+ */
+public interface XPathKeyGenerator
+{
+  String getKey(String uri, String value) throws XMLQueryException;
+
+  /**
+   * The number of keys held in memory by this generator.
+   */
+  long size();
+}
@@ -0,0 +1,38 @@
+package org.xmlquery;
+
+/**
+ * Thrown when a result table would exceed one of its {@link XPathProcessingLimits}.
+ */
+public class XPathLimitExceededException extends XMLQueryException
+{
+  private final String limitName;
+  private final long limit;
+  private final long count;
+
+  /**
+   * @param limitName the name of the limit, such as "row"
+   * @param count     the count, or estimated count, that exceeds the limit
+   */
+  public XPathLimitExceededException(String message, String limitName, long limit, long count)
+  {
+    super(message);
+    this.limitName = limitName;
+    this.limit = limit;
+    this.count = count;
+  }
+
+  public String getLimitName()
+  {
+    return limitName;
+  }
+
+  public long getLimit()
+  {
+    return limit;
+  }
+
+  public long getCount()
+  {
+    return count;
+  }
+}
@@ -0,0 +1,137 @@
+package org.xmlquery;
+
+import org.jdom.Attribute;
+import org.jdom.Document;
+import org.jdom.Element;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A per-document index of XPath absolute locations. The children of an element are numbered in a single
+ * scan the first time the location of any one of them is requested, so every element's positional path is
+ * built once and later lookups only check that the index is still current.
+ * <p>
+ * The index is stored as a property of the document it describes so that it is released along with the
+ * document. It notices elements being added to or removed from any ancestor of a node and rebuilds
+ * itself; other modifications, such as replacing or renaming an element in place, require an explicit
+ * call to {@link #invalidate()}.
+ *
+ * @see XMLUtil#getAbsoluteXPathLocation(Document, Object)
+ */
+public class XPathLocationIndex
+{
+  private static final String DOCUMENT_PROPERTY_NAME = XPathLocationIndex.class.getName();
+
+  private final Map<Element, String> elementLocations;
+  private final Map<Element, Integer> indexedContentSizes;
+
+  private XPathLocationIndex()
+  {
+    this.elementLocations = new ConcurrentHashMap<>();
+    this.indexedContentSizes = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Return the location index for a document, creating it if necessary.
+   */
+  public static XPathLocationIndex getXPathLocationIndex(Document document)
+  {
+    synchronized (document) {
+      Object locationIndex = document.getProperty(DOCUMENT_PROPERTY_NAME);
+
+      if (locationIndex instanceof XPathLocationIndex)
+        return (XPathLocationIndex)locationIndex;
+      else {
+        XPathLocationIndex newLocationIndex = new XPathLocationIndex();
+        document.setProperty(DOCUMENT_PROPERTY_NAME, newLocationIndex);
+        return newLocationIndex;
+      }
+    }
+  }
+
+  public String getAbsoluteXPathLocation(Object node) throws XMLQueryException
+  {
+    if (XMLUtil.isElementNode(node))
+      return getAbsoluteXPathLocation((Element)node);
+    else if (XMLUtil.isAttributeNode(node)) {
+      Attribute attribute = (Attribute)node;
+      return getAbsoluteXPathLocation(attribute.getParent()) + "@" + attribute.getQualifiedName();
+    } else
+      throw new XMLQueryException(
+        "only elements and attributes currently supported for absolute path construction");
+  }
+
+  /**
+   * Discard all indexed locations. Must be called after modifications that leave the number of children of
+   * every element unchanged.
+   */
+  public void invalidate()
+  {
+    elementLocations.clear();
+    indexedContentSizes.clear();
+  }
+
+  public int size()
+  {
+    return elementLocations.size();
+  }
+
+  private String getAbsoluteXPathLocation(Element element)
+  {
+    String location = elementLocations.get(element);
+
+    if (location != null) {
+      if (isCurrent(element))
+        return location;
+      else
+        invalidate();
+    }
+
+    if (element.isRootElement() || element.getParentElement() == null) {
+      location = "/" + element.getQualifiedName();
+      elementLocations.put(element, location);
+      return location;
+    } else {
+      indexChildren(element.getParentElement());
+      location = elementLocations.get(element);
+      return location != null ? location : getAbsoluteXPathLocation(element); // Lost a race with invalidate()
+    }
+  }
+
+  private void indexChildren(Element parent)
+  {
+    String parentLocation = getAbsoluteXPathLocation(parent);
+    int contentSize = parent.getContentSize();
+    Map<String, int[]> positionsByName = new HashMap<>();
+
+    indexedContentSizes.put(parent, contentSize);
+
+    for (Object child : parent.getChildren()) {
+      Element childElement = (Element)child;
+      String qualifiedName = childElement.getQualifiedName();
+      String expandedName = childElement.getNamespaceURI() + "}" + childElement.getName();
+      int[] position = positionsByName.get(expandedName);
+
+      if (position == null) {
+        position = new int[1];
+        positionsByName.put(expandedName, position);
+      }
+      position[0]++;
+
+      elementLocations.put(childElement, parentLocation + "/" + qualifiedName + "[" + position[0] + "]");
+    }
+  }
+
+  private boolean isCurrent(Element element)
+  {
+    for (Element ancestor = element.getParentElement(); ancestor != null; ancestor = ancestor.getParentElement()) {
+      Integer indexedContentSize = indexedContentSizes.get(ancestor);
+
+      if (indexedContentSize == null || indexedContentSize != ancestor.getContentSize())
+        return false;
+    }
+    return true;
+  }
+}
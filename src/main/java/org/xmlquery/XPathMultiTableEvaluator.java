@@ -0,0 +1,205 @@
+package org.xmlquery;
+
+import org.jdom.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates the expression lists of several tables against one document in a single depth-first pass. The lists
+ * are merged into a trie: tables whose lists start with equivalent expressions share the trie nodes of that
+ * prefix, so each shared column is evaluated and expanded once for all of them. An expression that appears at
+ * several places in the trie is also evaluated once per context node while its results for that node are among
+ * the {@link #MAXIMUM_SHARED_EVALUATIONS} most recently used; tables that share an expression mostly reach the
+ * same context node close together in the pass, and a context-free expression has only the document. Tables
+ * receive the same rows, in the same order, as {@link XPathExpressionProcessor#processXPathExpressions}
+ * produces for each list on its own.
+ * <p>
+ * When the processor interns values, columns are only shared between tables that give them the same display
+ * name, since values are interned and counted under the name of their column.
+ * <p>
+ * Result values are shared between tables, so a value's location is computed at most once. An error evaluating
+ * any table's expressions stops the whole pass.
+ *
+ * @see XPathExpressionProcessor#processXPathExpressions(Document, Map)
+ */
+class XPathMultiTableEvaluator
+{
+  /**
+   * The maximum number of context nodes for which the results of an expression used at several places in the
+   * trie are held.
+   */
+  static final int MAXIMUM_SHARED_EVALUATIONS = 1024;
+
+  private final XPathExpressionProcessor processor;
+  private final Document document;
+  private final TrieNode root;
+  private final Map<String, Map<Object, List<XPathResultValue>>> sharedEvaluations;
+  private int maximumColumnCount;
+
+  XPathMultiTableEvaluator(XPathExpressionProcessor processor, Document document)
+  {
+    this.processor = processor;
+    this.document = document;
+    this.root = new TrieNode(null, null, -1, false);
+    this.sharedEvaluations = new HashMap<>();
+    this.maximumColumnCount = 0;
+  }
+
+  /**
+   * Add a table, whose rows are delivered to a sink by {@link #evaluate()}. The expressions are compiled here.
+   */
+  void addTable(List<XPathExpression> expressions, XPathResultRowSink sink) throws XMLQueryException
+  {
+    XPathQueryPlan plan = XPathQueryPlan.createPlan(expressions, processor.getMetrics());
+    TrieNode node = root;
+
+    for (int column = 0; column < plan.getColumnCount(); column++) {
+      XPathExpression expression = plan.getExpression(column);
+      String key = processor.getEquivalenceKey(expression);
+      TrieNode child = node.children.get(key);
+
+      if (child == null) {
+        child = new TrieNode(expression, key, column, plan.isContextFree(column));
+        node.children.put(key, child);
+      }
+      node = child;
+    }
+
+    if (node != root)
+      node.sinks.add(sink);
+    maximumColumnCount = Math.max(maximumColumnCount, plan.getColumnCount());
+  }
+
+  /**
+   * Evaluate every table added so far, delivering each table's rows to its sink.
+   */
+  void evaluate() throws XMLQueryException
+  {
+    XPathLocationIndex locationIndex = XPathLocationIndex.getXPathLocationIndex(document);
+    XPathResultCache resultCache = processor.getXPathResultCache(document);
+    XPathResultValue[] currentRow = new XPathResultValue[maximumColumnCount];
+    Map<String, Integer> occurrenceCounts = new HashMap<>();
+
+    countOccurrences(root, occurrenceCounts);
+    markSharedNodes(root, occurrenceCounts);
+
+    try {
+      for (TrieNode child : root.children.values())
+        expand(child, document, currentRow, locationIndex, resultCache);
+    } finally {
+      if (processor.isRecordingMetrics())
+        processor.getMetrics().documentProcessed(processor.getExpressionKeyGenerator().size(),
+          processor.getValueKeyGenerator().size());
+    }
+  }
+
+  private void expand(TrieNode node, Object context, XPathResultValue[] currentRow,
+    XPathLocationIndex locationIndex, XPathResultCache resultCache) throws XMLQueryException
+  {
+    List<XPathResultValue> values = evaluateNode(node, context, locationIndex, resultCache);
+
+    if (processor.isRecordingMetrics())
+      processor.getMetrics().columnExpanded(node.column, node.expression, values.size());
+
+    for (XPathResultValue value : values) {
+      currentRow[node.column] = value;
+
+      for (XPathResultRowSink sink : node.sinks)
+        sink.acceptRow(new ArrayList<>(Arrays.asList(Arrays.copyOf(currentRow, node.column + 1))));
+
+      for (TrieNode child : node.children.values()) // Expand the next column using the rightmost node in the row
+        expand(child, value.getNode(), currentRow, locationIndex, resultCache);
+    }
+  }
+
+  private List<XPathResultValue> evaluateNode(TrieNode node, Object context, XPathLocationIndex locationIndex,
+    XPathResultCache resultCache) throws XMLQueryException
+  {
+    Object evaluationContext = node.isContextFree ? document : context;
+
+    if (node.evaluatedValues != null && node.evaluatedContext == evaluationContext)
+      return node.evaluatedValues;
+
+    List<XPathResultValue> values = null;
+    Map<Object, List<XPathResultValue>> evaluations = null;
+
+    if (node.isShared) {
+      evaluations = sharedEvaluations.computeIfAbsent(node.key, k -> createEvaluationMap());
+      values = evaluations.get(evaluationContext);
+    }
+
+    if (values == null) {
+      values = processor.generateResultValuesColumnForNode(evaluationContext, node.expression, locationIndex,
+        resultCache);
+      if (evaluations != null)
+        evaluations.put(evaluationContext, values);
+    }
+
+    node.evaluatedContext = evaluationContext;
+    node.evaluatedValues = values;
+    return values;
+  }
+
+  private static void countOccurrences(TrieNode node, Map<String, Integer> occurrenceCounts)
+  {
+    for (TrieNode child : node.children.values()) {
+      occurrenceCounts.merge(child.key, 1, Integer::sum);
+      countOccurrences(child, occurrenceCounts);
+    }
+  }
+
+  private static void markSharedNodes(TrieNode node, Map<String, Integer> occurrenceCounts)
+  {
+    for (TrieNode child : node.children.values()) {
+      child.isShared = occurrenceCounts.get(child.key) > 1;
+      markSharedNodes(child, occurrenceCounts);
+    }
+  }
+
+  /**
+   * Create a map from context nodes to the results of one shared expression that holds only the most recently
+   * used results. Nodes are compared by identity, as JDOM nodes are.
+   */
+  private static Map<Object, List<XPathResultValue>> createEvaluationMap()
+  {
+    return new LinkedHashMap<Object, List<XPathResultValue>>(16, 0.75f, true)
+    {
+      @Override protected boolean removeEldestEntry(Map.Entry<Object, List<XPathResultValue>> eldest)
+      {
+        return size() > MAXIMUM_SHARED_EVALUATIONS;
+      }
+    };
+  }
+
+  /**
+   * A column shared by the tables whose expression lists start with the path from the root to this node.
+   */
+  private static class TrieNode
+  {
+    private final XPathExpression expression;
+    private final String key;
+    private final int column;
+    private final boolean isContextFree;
+    private final Map<String, TrieNode> children;
+    private final List<XPathResultRowSink> sinks;
+    private boolean isShared;
+    private Object evaluatedContext;
+    private List<XPathResultValue> evaluatedValues;
+
+    public TrieNode(XPathExpression expression, String key, int column, boolean isContextFree)
+    {
+      this.expression = expression;
+      this.key = key;
+      this.column = column;
+      this.isContextFree = isContextFree;
+      this.children = new LinkedHashMap<>();
+      this.sinks = new ArrayList<>();
+      this.isShared = false;
+    }
+  }
+}
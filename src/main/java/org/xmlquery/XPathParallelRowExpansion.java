@@ -0,0 +1,93 @@
+package org.xmlquery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Expands the rows that start with a row prefix on a fork/join pool. The values of the prefix's next column are
+ * split in half for as long as the pool has idle threads to take the halves; a single value is extended into
+ * the prefix and the column after it evaluated, so that a document with a single root element still splits on
+ * its records. A task that is not split produces its rows sequentially with an {@link XPathResultRowIterator}.
+ * <p>
+ * Each task keeps its own rows, and {@link #addRowsTo} delivers them in task order, which is row order.
+ *
+ * @see XPathExpressionProcessor#processXPathExpressionsInParallel
+ */
+class XPathParallelRowExpansion extends RecursiveAction
+{
+  private static final int MAXIMUM_SURPLUS_TASK_COUNT = 3;
+
+  private final XPathResultRowIterator prototype;
+  private final int columnCount;
+  private final XPathResultValue[] prefix;
+  private final List<XPathResultValue> values;
+  private final List<XPathParallelRowExpansion> subtasks;
+  private List<List<XPathResultValue>> rows;
+
+  /**
+   * @param prototype an iterator whose context-free columns have been evaluated
+   * @param prefix    the values of the columns before {@code values}' column
+   */
+  XPathParallelRowExpansion(XPathResultRowIterator prototype, int columnCount, XPathResultValue[] prefix,
+    List<XPathResultValue> values)
+  {
+    this.prototype = prototype;
+    this.columnCount = columnCount;
+    this.prefix = prefix;
+    this.values = values;
+    this.subtasks = new ArrayList<>(2);
+  }
+
+  @Override protected void compute()
+  {
+    int column = prefix.length;
+    boolean isSplittable = column < columnCount - 1 && getSurplusQueuedTaskCount() <= MAXIMUM_SURPLUS_TASK_COUNT;
+
+    if (isSplittable && values.size() > 1) {
+      int middle = values.size() / 2;
+
+      subtasks.add(new XPathParallelRowExpansion(prototype, columnCount, prefix, values.subList(0, middle)));
+      subtasks.add(new XPathParallelRowExpansion(prototype, columnCount, prefix,
+        values.subList(middle, values.size())));
+      invokeAll(subtasks);
+    } else if (isSplittable && values.size() == 1) {
+      XPathResultValue value = values.get(0);
+      XPathResultValue[] nextPrefix = Arrays.copyOf(prefix, column + 1);
+      List<XPathResultValue> nextValues;
+
+      nextPrefix[column] = value;
+      try {
+        nextValues = prototype.evaluateColumnConcurrently(column + 1, value.getNode());
+      } catch (XMLQueryException e) {
+        throw new UncheckedXMLQueryException(e);
+      }
+
+      XPathParallelRowExpansion subtask = new XPathParallelRowExpansion(prototype, columnCount, nextPrefix,
+        nextValues);
+      subtasks.add(subtask);
+      subtask.compute();
+    } else {
+      Iterator<List<XPathResultValue>> rowIterator = new XPathResultRowIterator(prototype, prefix, values);
+
+      rows = new ArrayList<>();
+      while (rowIterator.hasNext())
+        rows.add(rowIterator.next());
+    }
+  }
+
+  /**
+   * Deliver the rows of a completed expansion to a sink in row order.
+   */
+  void addRowsTo(XPathResultRowSink sink) throws XMLQueryException
+  {
+    if (rows != null)
+      for (List<XPathResultValue> row : rows)
+        sink.acceptRow(row);
+
+    for (XPathParallelRowExpansion subtask : subtasks)
+      subtask.addRowsTo(sink);
+  }
+}
@@ -0,0 +1,88 @@
+package org.xmlquery;
+
+/**
+ * Limits on the size of a result table built by {@link XPathExpressionProcessor#processXPathExpressions(
+ * org.jdom.Document, java.util.List, XPathResultValueTable, XPathProcessingLimits)}, by its overload for a
+ * {@link CompactDocument}, or by {@link XPathQuerySession#getResultTable(XPathResultValueTable,
+ * XPathProcessingLimits)}. Parallel and multi-table processing are not bounded. A table can grow with the
+ * product of its columns' fan-outs, so a single broad expression such as {@code //*} can exhaust memory.
+ * <p>
+ * Bytes are an estimate of the heap retained by the result values, not an exact measure. A limit of
+ * {@link Long#MAX_VALUE} is no limit.
+ */
+public final class XPathProcessingLimits
+{
+  public enum LimitAction
+  {
+    /**
+     * Throw an {@link XPathLimitExceededException}, before expansion if the estimated row count is already over
+     * the row limit.
+     */
+    FAIL,
+
+    /**
+     * Stop adding rows once a limit is reached and return the rows produced so far.
+     */
+    TRUNCATE
+  }
+
+  public static final XPathProcessingLimits UNLIMITED = new XPathProcessingLimits(Long.MAX_VALUE, Long.MAX_VALUE,
+    Long.MAX_VALUE, LimitAction.FAIL);
+
+  private final long maximumRowCount;
+  private final long maximumCellCount;
+  private final long maximumByteCount;
+  private final LimitAction limitAction;
+
+  public XPathProcessingLimits(long maximumRowCount, long maximumCellCount, long maximumByteCount,
+    LimitAction limitAction)
+  {
+    if (maximumRowCount < 0 || maximumCellCount < 0 || maximumByteCount < 0)
+      throw new IllegalArgumentException("limits must not be negative");
+
+    this.maximumRowCount = maximumRowCount;
+    this.maximumCellCount = maximumCellCount;
+    this.maximumByteCount = maximumByteCount;
+    this.limitAction = limitAction;
+  }
+
+  public long getMaximumRowCount()
+  {
+    return maximumRowCount;
+  }
+
+  public long getMaximumCellCount()
+  {
+    return maximumCellCount;
+  }
+
+  public long getMaximumByteCount()
+  {
+    return maximumByteCount;
+  }
+
+  public LimitAction getLimitAction()
+  {
+    return limitAction;
+  }
+
+  /**
+   * An estimate of the heap retained by a result value: the object and its value string. Locations are
+   * shared with the document's location index and are not counted.
+   */
+  static long estimateByteCount(XPathResultValue value)
+  {
+    String s = value.getValue();
+    return 48 + (s == null ? 0 : 40 + 2L * s.length());
+  }
+
+  @Override public String toString()
+  {
+    return "XPathProcessingLimits{" +
+      "maximumRowCount=" + maximumRowCount +
+      ", maximumCellCount=" + maximumCellCount +
+      ", maximumByteCount=" + maximumByteCount +
+      ", limitAction=" + limitAction +
+      '}';
+  }
+}
@@ -0,0 +1,64 @@
+package org.xmlquery;
+
+/**
+ * Receives measurements from an {@link XPathExpressionProcessor} and the classes that drive it. Every method
+ * has an empty default, so an implementation only overrides what it records. Implementations are called on the
+ * evaluation threads and must be thread-safe and cheap.
+ * <p>
+ * A processor created with {@link #NO_OP} does not read the clock or compute anything for its metrics.
+ *
+ * @see XPathExpressionProcessor#XPathExpressionProcessor(XPathKeyGenerator, XPathKeyGenerator, int,
+ * XPathProcessorMetrics)
+ * @see AccumulatingXPathProcessorMetrics
+ */
+public interface XPathProcessorMetrics
+{
+  XPathProcessorMetrics NO_OP = new XPathProcessorMetrics()
+  {
+  };
+
+  /**
+   * An XML file was parsed into a document.
+   */
+  default void documentParsed(String inputXMLStreamName, long nanos)
+  {
+  }
+
+  /**
+   * An expression was compiled, or its compiled form was looked up, before evaluation.
+   */
+  default void expressionCompiled(XPathExpression expression, long nanos)
+  {
+  }
+
+  /**
+   * An expression was evaluated against one context node and selected a number of nodes.
+   */
+  default void expressionEvaluated(XPathExpression expression, long nanos, int matchedNodeCount)
+  {
+  }
+
+  /**
+   * Absolute locations of selected nodes were computed. Result values compute their locations when they are
+   * first requested, or when an expression key is generated, so this is called once for each location built.
+   */
+  default void locationsComputed(int locationCount, long nanos)
+  {
+  }
+
+  /**
+   * A column was expanded for one row prefix, producing a number of rows. The product of these counts along a
+   * row is the size of the table, so a column with a large count multiplies the rows of every column after it.
+   */
+  default void columnExpanded(int column, XPathExpression expression, int rowCount)
+  {
+  }
+
+  /**
+   * Processing of a document ended, after its last row or because the caller stopped early or failed; the key
+   * generators held the given numbers of keys.
+   */
+  default void documentProcessed(long expressionKeyCount, long valueKeyCount)
+  {
+  }
+}
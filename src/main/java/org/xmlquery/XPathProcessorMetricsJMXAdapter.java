@@ -0,0 +1,129 @@
+package org.xmlquery;
+
+import org.xmlquery.AccumulatingXPathProcessorMetrics.ExpressionStatistics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Exposes {@link AccumulatingXPathProcessorMetrics} as a JMX MXBean. A column whose maximum fan-out or produced
+ * row count is far above the others is usually an accidental cross product.
+ */
+public class XPathProcessorMetricsJMXAdapter implements XPathProcessorMetricsMXBean
+{
+  public static final String DEFAULT_OBJECT_NAME = "org.xmlquery:type=XPathProcessorMetrics";
+
+  private final AccumulatingXPathProcessorMetrics metrics;
+
+  public XPathProcessorMetricsJMXAdapter(AccumulatingXPathProcessorMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Register this adapter with the platform MBean server under the given object name.
+   */
+  public ObjectName register(String objectName) throws XMLQueryException
+  {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      return server.registerMBean(this, new ObjectName(objectName)).getObjectName();
+    } catch (JMException e) {
+      throw new XMLQueryException("error registering metrics MBean '" + objectName + "': " + e.getMessage(), e);
+    }
+  }
+
+  public void unregister(ObjectName objectName) throws XMLQueryException
+  {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      throw new XMLQueryException("error unregistering metrics MBean '" + objectName + "': " + e.getMessage(), e);
+    }
+  }
+
+  @Override public long getParsedDocumentCount()
+  {
+    return metrics.getParsedDocumentCount();
+  }
+
+  @Override public long getParseNanos()
+  {
+    return metrics.getParseNanos();
+  }
+
+  @Override public long getProcessedDocumentCount()
+  {
+    return metrics.getProcessedDocumentCount();
+  }
+
+  @Override public long getComputedLocationCount()
+  {
+    return metrics.getComputedLocationCount();
+  }
+
+  @Override public long getLocationNanos()
+  {
+    return metrics.getLocationNanos();
+  }
+
+  @Override public long getExpressionKeyCount()
+  {
+    return metrics.getExpressionKeyCount();
+  }
+
+  @Override public long getValueKeyCount()
+  {
+    return metrics.getValueKeyCount();
+  }
+
+  @Override public Map<String, Long> getCompileNanosByExpression()
+  {
+    return byExpression(ExpressionStatistics::getCompileNanos);
+  }
+
+  @Override public Map<String, Long> getEvaluationCountByExpression()
+  {
+    return byExpression(ExpressionStatistics::getEvaluationCount);
+  }
+
+  @Override public Map<String, Long> getEvaluationNanosByExpression()
+  {
+    return byExpression(ExpressionStatistics::getEvaluationNanos);
+  }
+
+  @Override public Map<String, Long> getMatchedNodeCountByExpression()
+  {
+    return byExpression(ExpressionStatistics::getMatchedNodeCount);
+  }
+
+  @Override public Map<String, Long> getProducedRowCountByExpression()
+  {
+    return byExpression(ExpressionStatistics::getProducedRowCount);
+  }
+
+  @Override public Map<String, Long> getMaximumFanOutByExpression()
+  {
+    return byExpression(ExpressionStatistics::getMaximumFanOut);
+  }
+
+  @Override public void reset()
+  {
+    metrics.reset();
+  }
+
+  private Map<String, Long> byExpression(ToLongFunction<ExpressionStatistics> statistic)
+  {
+    Map<String, Long> result = new LinkedHashMap<>();
+
+    for (Map.Entry<String, ExpressionStatistics> entry : metrics.getExpressionStatistics().entrySet())
+      result.put(entry.getKey(), statistic.applyAsLong(entry.getValue()));
+
+    return result;
+  }
+}
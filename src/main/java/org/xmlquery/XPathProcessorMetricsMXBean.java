@@ -0,0 +1,39 @@
+package org.xmlquery;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link AccumulatingXPathProcessorMetrics}. Per-expression attributes are keyed by expression.
+ *
+ * @see XPathProcessorMetricsJMXAdapter
+ */
+public interface XPathProcessorMetricsMXBean
+{
+  long getParsedDocumentCount();
+
+  long getParseNanos();
+
+  long getProcessedDocumentCount();
+
+  long getComputedLocationCount();
+
+  long getLocationNanos();
+
+  long getExpressionKeyCount();
+
+  long getValueKeyCount();
+
+  Map<String, Long> getCompileNanosByExpression();
+
+  Map<String, Long> getEvaluationCountByExpression();
+
+  Map<String, Long> getEvaluationNanosByExpression();
+
+  Map<String, Long> getMatchedNodeCountByExpression();
+
+  Map<String, Long> getProducedRowCountByExpression();
+
+  Map<String, Long> getMaximumFanOutByExpression();
+
+  void reset();
+}
@@ -0,0 +1,93 @@
+package org.xmlquery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The evaluation plan for a list of {@link XPathExpression}s. Each column is evaluated against the rightmost node
+ * of the row to its left, so a column is normally re-evaluated for every row of the columns before it. Planning
+ * finds the columns for which this is unnecessary:
+ * <ul>
+ * <li>Context-free columns, such as absolute location paths, select the same nodes whatever their context. They
+ * are evaluated once per document, ahead of the columns to their left, and if any of them selects nothing the
+ * table is empty and no other column is evaluated.</li>
+ * <li>Other columns are evaluated once per run of consecutive rows with the same context node, since only the
+ * last context of each column is kept. A context repeats in consecutive rows when it comes from a column that
+ * selects a single node, such as a context-free column with one match, or from an expression that walks back up
+ * the tree to the same node; a column selecting several nodes gives a new context on each row.</li>
+ * </ul>
+ * Plans are immutable; all expressions are compiled when the plan is created.
+ *
+ * @see XPathExpressionProcessor#iterateXPathExpressions
+ */
+class XPathQueryPlan
+{
+  private final List<XPathExpression> expressions;
+  private final boolean[] contextFreeColumns;
+
+  private XPathQueryPlan(List<XPathExpression> expressions, boolean[] contextFreeColumns)
+  {
+    this.expressions = Collections.unmodifiableList(expressions);
+    this.contextFreeColumns = contextFreeColumns;
+  }
+
+  public static XPathQueryPlan createPlan(List<XPathExpression> expressions) throws XMLQueryException
+  {
+    return createPlan(expressions, XPathProcessorMetrics.NO_OP);
+  }
+
+  public static XPathQueryPlan createPlan(List<XPathExpression> expressions, XPathProcessorMetrics metrics)
+    throws XMLQueryException
+  {
+    List<XPathExpression> plannedExpressions = new ArrayList<>(expressions);
+    boolean[] contextFreeColumns = new boolean[plannedExpressions.size()];
+
+    for (int column = 0; column < plannedExpressions.size(); column++) { // Compile up front so rows never re-parse
+      XPathExpression expression = plannedExpressions.get(column);
+
+      if (metrics == XPathProcessorMetrics.NO_OP)
+        contextFreeColumns[column] = expression.getCompiledExpression().isContextFree();
+      else {
+        long startNanos = System.nanoTime();
+        contextFreeColumns[column] = expression.getCompiledExpression().isContextFree();
+        metrics.expressionCompiled(expression, System.nanoTime() - startNanos);
+      }
+    }
+
+    return new XPathQueryPlan(plannedExpressions, contextFreeColumns);
+  }
+
+  public List<XPathExpression> getExpressions()
+  {
+    return expressions;
+  }
+
+  public int getColumnCount()
+  {
+    return expressions.size();
+  }
+
+  public XPathExpression getExpression(int column)
+  {
+    return expressions.get(column);
+  }
+
+  public boolean isContextFree(int column)
+  {
+    return contextFreeColumns[column];
+  }
+
+  @Override public String toString()
+  {
+    StringBuilder sb = new StringBuilder("XPathQueryPlan{");
+
+    for (int column = 0; column < expressions.size(); column++) {
+      if (column > 0)
+        sb.append(", ");
+      sb.append(expressions.get(column).getXPathExpression())
+        .append(contextFreeColumns[column] ? " (once per document)" : " (once per context)");
+    }
+    return sb.append('}').toString();
+  }
+}
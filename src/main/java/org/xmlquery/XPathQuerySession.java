@@ -0,0 +1,235 @@
+package org.xmlquery;
+
+import org.jdom.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Evaluates a changing list of {@link XPathExpression}s against one document, keeping the work done for each
+ * prefix of the list. Appending an expression evaluates only the new column, and replacing or removing the
+ * expression in column k discards and later recomputes only columns k onwards.
+ * <p>
+ * The rows for the first k columns are held as one level of a tree: each cell in column k refers to its row
+ * prefix in column k - 1, so a cell shared by many rows is stored once. Result tables contain the same rows as
+ * {@link XPathExpressionProcessor#processXPathExpressions} would produce.
+ * <p>
+ * The document must not be modified while a session is in use, or {@link #invalidate()} must be called after
+ * each modification. Sessions are not thread-safe.
+ *
+ * @see XPathExpressionProcessor
+ */
+public class XPathQuerySession
+{
+  private final XPathExpressionProcessor processor;
+  private final Document document;
+  private final List<XPathExpression> expressions;
+  private final List<List<Cell>> evaluatedColumns;
+
+  public XPathQuerySession(XPathExpressionProcessor processor, Document document)
+  {
+    this.processor = processor;
+    this.document = document;
+    this.expressions = new ArrayList<>();
+    this.evaluatedColumns = new ArrayList<>();
+  }
+
+  public Document getDocument()
+  {
+    return document;
+  }
+
+  public List<XPathExpression> getExpressions()
+  {
+    return Collections.unmodifiableList(expressions);
+  }
+
+  /**
+   * Replace the whole expression list, keeping the columns of the prefix it shares with the current list.
+   */
+  public void setExpressions(List<XPathExpression> newExpressions)
+  {
+    int sharedColumnCount = 0;
+
+    while (sharedColumnCount < expressions.size() && sharedColumnCount < newExpressions.size() &&
+      isEquivalent(expressions.get(sharedColumnCount), newExpressions.get(sharedColumnCount)))
+      sharedColumnCount++;
+
+    discardEvaluatedColumns(sharedColumnCount);
+    expressions.clear();
+    expressions.addAll(newExpressions);
+  }
+
+  public void appendExpression(XPathExpression expression)
+  {
+    expressions.add(expression);
+  }
+
+  public void setExpression(int column, XPathExpression expression)
+  {
+    if (!isEquivalent(expressions.get(column), expression))
+      discardEvaluatedColumns(column);
+    expressions.set(column, expression);
+  }
+
+  public void removeExpression(int column)
+  {
+    discardEvaluatedColumns(column);
+    expressions.remove(column);
+  }
+
+  /**
+   * Discard all evaluated columns, for example after the document has been modified.
+   */
+  public void invalidate()
+  {
+    discardEvaluatedColumns(0);
+  }
+
+  /**
+   * The number of leading columns whose results are currently held.
+   */
+  public int getEvaluatedColumnCount()
+  {
+    return evaluatedColumns.size();
+  }
+
+  /**
+   * Evaluate any columns not yet evaluated and return the result rows in a new table of the same kind as the
+   * supplied one.
+   */
+  public XPathResultValueTable getResultTable(XPathResultValueTable accumulatedXPathResultValueTable)
+    throws XMLQueryException
+  {
+    return getResultTable(accumulatedXPathResultValueTable, XPathProcessingLimits.UNLIMITED);
+  }
+
+  /**
+   * Evaluate any columns not yet evaluated and return the result rows in a new table whose size is bounded by a
+   * set of limits. The limits are checked as each row is added to the table; the evaluated columns are held in
+   * full whatever the limits.
+   */
+  public XPathResultValueTable getResultTable(XPathResultValueTable accumulatedXPathResultValueTable,
+    XPathProcessingLimits limits) throws XMLQueryException
+  {
+    XPathResultValueTable resultTable = accumulatedXPathResultValueTable.createEmptyTable();
+
+    if (expressions.isEmpty())
+      return resultTable;
+
+    evaluateColumns();
+
+    XPathExpressionProcessor.addRowsWithinLimits(
+      new RowIterator(evaluatedColumns.get(expressions.size() - 1).iterator(), expressions.size()), resultTable,
+      limits);
+
+    return resultTable;
+  }
+
+  private void evaluateColumns() throws XMLQueryException
+  {
+    XPathLocationIndex locationIndex = XPathLocationIndex.getXPathLocationIndex(document);
+    XPathResultCache resultCache = processor.getXPathResultCache(document);
+
+    while (evaluatedColumns.size() < expressions.size()) {
+      int column = evaluatedColumns.size();
+      XPathExpression expression = expressions.get(column);
+      List<Cell> cells = new ArrayList<>();
+
+      if (column == 0 || expression.getCompiledExpression().isContextFree()) {
+        List<XPathResultValue> values = processor.generateResultValuesColumnForNode(document, expression,
+          locationIndex, resultCache);
+
+        if (column == 0)
+          addCells(column, expression, null, values, cells);
+        else
+          for (Cell prefix : evaluatedColumns.get(column - 1))
+            addCells(column, expression, prefix, values, cells);
+      } else {
+        Object previousContext = null;
+        List<XPathResultValue> values = null;
+
+        for (Cell prefix : evaluatedColumns.get(column - 1)) {
+          Object context = prefix.value.getNode();
+
+          if (values == null || context != previousContext) {
+            values = processor.generateResultValuesColumnForNode(context, expression, locationIndex, resultCache);
+            previousContext = context;
+          }
+          addCells(column, expression, prefix, values, cells);
+        }
+      }
+      evaluatedColumns.add(cells);
+    }
+  }
+
+  private void addCells(int column, XPathExpression expression, Cell prefix, List<XPathResultValue> values,
+    List<Cell> cells)
+  {
+    if (processor.isRecordingMetrics())
+      processor.getMetrics().columnExpanded(column, expression, values.size());
+
+    for (XPathResultValue value : values)
+      cells.add(new Cell(prefix, value));
+  }
+
+  private void discardEvaluatedColumns(int column)
+  {
+    if (column < evaluatedColumns.size())
+      evaluatedColumns.subList(column, evaluatedColumns.size()).clear();
+  }
+
+  /**
+   * Whether two expressions produce the same column given the same context, by the rule the processor uses to
+   * share columns between tables.
+   */
+  private boolean isEquivalent(XPathExpression expression1, XPathExpression expression2)
+  {
+    return processor.getEquivalenceKey(expression1).equals(processor.getEquivalenceKey(expression2));
+  }
+
+  /**
+   * Iterates over the rows ending in each cell of the last column.
+   */
+  private static class RowIterator implements Iterator<List<XPathResultValue>>
+  {
+    private final Iterator<Cell> cells;
+    private final int columnCount;
+
+    public RowIterator(Iterator<Cell> cells, int columnCount)
+    {
+      this.cells = cells;
+      this.columnCount = columnCount;
+    }
+
+    @Override public boolean hasNext()
+    {
+      return cells.hasNext();
+    }
+
+    @Override public List<XPathResultValue> next()
+    {
+      Cell cell = cells.next();
+      XPathResultValue[] row = new XPathResultValue[columnCount];
+
+      for (int column = row.length - 1; column >= 0; column--, cell = cell.prefix)
+        row[column] = cell.value;
+      return new ArrayList<>(Arrays.asList(row));
+    }
+  }
+
+  private static class Cell
+  {
+    private final Cell prefix;
+    private final XPathResultValue value;
+
+    public Cell(Cell prefix, XPathResultValue value)
+    {
+      this.prefix = prefix;
+      this.value = value;
+    }
+  }
+}
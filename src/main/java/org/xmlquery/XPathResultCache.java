@@ -0,0 +1,185 @@
+package org.xmlquery;
+
+import org.jdom.Document;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A per-document cache of the nodes selected by {@link CompiledXPathExpression}s, keyed by the identity of the
+ * context node and of the compiled expression. The least recently used entry is evicted once the cache is full.
+ * <p>
+ * Like {@link XPathLocationIndex}, the cache is stored as a property of the document it describes and is
+ * released along with the document. It must be invalidated after the document is modified. Thread-safe;
+ * evaluation happens outside the cache lock.
+ *
+ * @see XPathExpressionProcessor#XPathExpressionProcessor(XPathKeyGenerator, XPathKeyGenerator, int)
+ */
+public class XPathResultCache
+{
+  private static final String DOCUMENT_PROPERTY_NAME = XPathResultCache.class.getName();
+
+  private final int maximumSize;
+  private final Map<CacheKey, List<Object>> selectedNodes;
+  private final AtomicLong hitCount, missCount, evictionCount;
+
+  private XPathResultCache(int maximumSize)
+  {
+    this.maximumSize = maximumSize;
+    this.selectedNodes = new LinkedHashMap<CacheKey, List<Object>>(16, 0.75f, true)
+    {
+      @Override protected boolean removeEldestEntry(Map.Entry<CacheKey, List<Object>> eldest)
+      {
+        if (size() > XPathResultCache.this.maximumSize) {
+          evictionCount.incrementAndGet();
+          return true;
+        } else
+          return false;
+      }
+    };
+    this.hitCount = new AtomicLong();
+    this.missCount = new AtomicLong();
+    this.evictionCount = new AtomicLong();
+  }
+
+  /**
+   * Return the result cache for a document, creating it with the given maximum size if necessary. An existing
+   * cache keeps the size it was created with.
+   */
+  public static XPathResultCache getXPathResultCache(Document document, int maximumSize)
+  {
+    if (maximumSize < 1)
+      throw new IllegalArgumentException("maximum cache size must be positive, got " + maximumSize);
+
+    synchronized (document) {
+      Object resultCache = document.getProperty(DOCUMENT_PROPERTY_NAME);
+
+      if (resultCache instanceof XPathResultCache)
+        return (XPathResultCache)resultCache;
+      else {
+        XPathResultCache newResultCache = new XPathResultCache(maximumSize);
+        document.setProperty(DOCUMENT_PROPERTY_NAME, newResultCache);
+        return newResultCache;
+      }
+    }
+  }
+
+  /**
+   * Return the nodes an expression selects from a context node, evaluating it on a miss. The returned list
+   * is shared and cannot be modified.
+   */
+  public List<Object> selectNodes(Object context, CompiledXPathExpression xPathExpression) throws XMLQueryException
+  {
+    List<Object> nodes = getSelectedNodes(context, xPathExpression);
+
+    return nodes != null ? nodes : putSelectedNodes(context, xPathExpression, xPathExpression.selectNodes(context));
+  }
+
+  /**
+   * Return the cached nodes for a context node and expression, or null on a miss.
+   */
+  List<Object> getSelectedNodes(Object context, CompiledXPathExpression xPathExpression)
+  {
+    List<Object> nodes;
+
+    synchronized (selectedNodes) {
+      nodes = selectedNodes.get(new CacheKey(context, xPathExpression));
+    }
+
+    if (nodes != null)
+      hitCount.incrementAndGet();
+    else
+      missCount.incrementAndGet();
+
+    return nodes;
+  }
+
+  List<Object> putSelectedNodes(Object context, CompiledXPathExpression xPathExpression, List<Object> nodes)
+  {
+    List<Object> cachedNodes = Collections.unmodifiableList(nodes);
+
+    synchronized (selectedNodes) {
+      selectedNodes.put(new CacheKey(context, xPathExpression), cachedNodes);
+    }
+    return cachedNodes;
+  }
+
+  public int getMaximumSize()
+  {
+    return maximumSize;
+  }
+
+  public int size()
+  {
+    synchronized (selectedNodes) {
+      return selectedNodes.size();
+    }
+  }
+
+  public long getHitCount()
+  {
+    return hitCount.get();
+  }
+
+  public long getMissCount()
+  {
+    return missCount.get();
+  }
+
+  public long getEvictionCount()
+  {
+    return evictionCount.get();
+  }
+
+  /**
+   * Discard all cached results. Must be called after the document is modified.
+   */
+  public void invalidate()
+  {
+    synchronized (selectedNodes) {
+      selectedNodes.clear();
+    }
+  }
+
+  @Override public String toString()
+  {
+    return "XPathResultCache{" +
+      "size=" + size() +
+      ", maximumSize=" + maximumSize +
+      ", hitCount=" + hitCount +
+      ", missCount=" + missCount +
+      ", evictionCount=" + evictionCount +
+      '}';
+  }
+
+  private static class CacheKey
+  {
+    private final Object context;
+    private final CompiledXPathExpression xPathExpression;
+
+    public CacheKey(Object context, CompiledXPathExpression xPathExpression)
+    {
+      this.context = context;
+      this.xPathExpression = xPathExpression;
+    }
+
+    @Override public boolean equals(Object o)
+    {
+      if (this == o)
+        return true;
+      if (!(o instanceof CacheKey))
+        return false;
+
+      CacheKey other = (CacheKey)o;
+      return context == other.context && xPathExpression == other.xPathExpression;
+    }
+
+    @Override public int hashCode()
+    {
+      return 31 * System.identityHashCode(context) + System.identityHashCode(xPathExpression);
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package org.xmlquery;
+
+import org.jdom.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Produces the rows of an {@link XPathResultValueTable} one at a time by evaluating a list of
+ * {@link XPathExpression}s depth-first. Only the result values for the current context node of each
+ * column are held, so memory use does not grow with the number of rows. Rows are produced in the same
+ * order as {@link XPathExpressionProcessor#processXPathExpressions} produces them.
+ * <p>
+ * Columns are evaluated as the {@link XPathQueryPlan} directs, so result values may be shared between rows.
+ * <p>
+ * Evaluation errors are reported as {@link UncheckedXMLQueryException}s.
+ * <p>
+ * The document is reported to the processor's metrics as processed when the iterator is exhausted or
+ * {@link #finish()}ed, whichever comes first. Callers in this package that may stop early call {@link #finish()}
+ * on every exit path; an iterator handed out and abandoned before its last row does not report the document.
+ *
+ * @see XPathExpressionProcessor#iterateXPathExpressions(Document, List)
+ */
+class XPathResultRowIterator implements Iterator<List<XPathResultValue>>
+{
+  private final XPathExpressionProcessor processor;
+  private final Object document;
+  private final CompactDocument compactDocument;
+  private final XPathQueryPlan plan;
+  private final XPathLocationIndex locationIndex;
+  private final XPathResultCache resultCache;
+  private final Map<Integer, List<Object>> documentSelections;
+  private final List<Iterator<XPathResultValue>> columnIterators;
+  private final XPathResultValue[] currentRow;
+  private final List<List<XPathResultValue>> evaluatedColumns;
+  private final Object[] evaluatedContexts;
+  private final XMLQueryException[] deferredErrors;
+  private final int startColumn;
+  private final boolean isPrefixed;
+  private int currentColumn;
+  private List<XPathResultValue> nextRow;
+  private boolean isFinished;
+
+  XPathResultRowIterator(XPathExpressionProcessor processor, Document document, XPathQueryPlan plan,
+    XPathLocationIndex locationIndex, XPathResultCache resultCache)
+  {
+    this(processor, document, plan, locationIndex, resultCache, null);
+  }
+
+  /**
+   * Create an iterator that uses nodes already selected against the document, by column, instead of evaluating
+   * those columns against the document again. Each selection is used once and then released.
+   *
+   * @param documentSelections the selected nodes by column; may be null
+   */
+  XPathResultRowIterator(XPathExpressionProcessor processor, Document document, XPathQueryPlan plan,
+    XPathLocationIndex locationIndex, XPathResultCache resultCache, Map<Integer, List<Object>> documentSelections)
+  {
+    this(processor, document, null, plan, locationIndex, resultCache, documentSelections, 0, false);
+  }
+
+  /**
+   * Create an iterator over the rows for a compact document, whose result values hold compact nodes.
+   */
+  XPathResultRowIterator(XPathExpressionProcessor processor, CompactDocument compactDocument, XPathQueryPlan plan)
+  {
+    this(processor, compactDocument.getNode(CompactDocument.DOCUMENT_NODE_ID), compactDocument, plan, null, null,
+      null, 0, false);
+  }
+
+  /**
+   * Create an iterator over the rows that start with a given prefix and continue with one of the given values
+   * of the next column. The context-free columns and any errors deferred by the prototype are shared, so
+   * iterators created from the same prototype can run on different threads.
+   *
+   * @param prototype an iterator on which {@link #evaluateContextFreeColumns()} has returned true
+   * @param prefix    the values of the columns before {@code values}' column
+   */
+  XPathResultRowIterator(XPathResultRowIterator prototype, XPathResultValue[] prefix, List<XPathResultValue> values)
+  {
+    this(prototype.processor, prototype.document, prototype.compactDocument, prototype.plan, prototype.locationIndex,
+      prototype.resultCache, null, prefix.length, true);
+
+    for (int column = 0; column < plan.getColumnCount(); column++)
+      if (plan.isContextFree(column))
+        evaluatedColumns.set(column, prototype.evaluatedColumns.get(column));
+    System.arraycopy(prototype.deferredErrors, 0, deferredErrors, 0, deferredErrors.length);
+    System.arraycopy(prefix, 0, currentRow, 0, prefix.length);
+    columnIterators.set(startColumn, values.iterator());
+    currentColumn = startColumn;
+  }
+
+  private XPathResultRowIterator(XPathExpressionProcessor processor, Object document,
+    CompactDocument compactDocument, XPathQueryPlan plan, XPathLocationIndex locationIndex,
+    XPathResultCache resultCache, Map<Integer, List<Object>> documentSelections, int startColumn, boolean isPrefixed)
+  {
+    int columnCount = plan.getColumnCount();
+
+    this.processor = processor;
+    this.document = document;
+    this.compactDocument = compactDocument;
+    this.plan = plan;
+    this.locationIndex = locationIndex;
+    this.resultCache = resultCache;
+    this.documentSelections = documentSelections;
+    this.columnIterators = new ArrayList<>(columnCount);
+    this.currentRow = new XPathResultValue[columnCount];
+    this.evaluatedColumns = new ArrayList<>(columnCount);
+    this.evaluatedContexts = new Object[columnCount];
+    this.deferredErrors = new XMLQueryException[columnCount];
+    this.startColumn = startColumn;
+    this.isPrefixed = isPrefixed;
+    this.currentColumn = -1;
+    this.nextRow = null;
+    this.isFinished = false;
+
+    for (int column = 0; column < columnCount; column++) {
+      columnIterators.add(null);
+      evaluatedColumns.add(null);
+    }
+  }
+
+  @Override public boolean hasNext()
+  {
+    if (nextRow == null) {
+      try {
+        nextRow = findNextRow();
+      } catch (XMLQueryException e) {
+        throw new UncheckedXMLQueryException(e);
+      }
+    }
+    return nextRow != null;
+  }
+
+  @Override public List<XPathResultValue> next()
+  {
+    if (!hasNext())
+      throw new NoSuchElementException();
+
+    List<XPathResultValue> row = nextRow;
+    nextRow = null;
+    return row;
+  }
+
+  /**
+   * Stop producing rows and report the document as processed, unless that was already done. Iterators created
+   * for a prefix of a row do not report the document, which is left to their prototype.
+   */
+  void finish()
+  {
+    currentColumn = -2;
+    nextRow = null;
+
+    if (isFinished || isPrefixed)
+      return;
+
+    isFinished = true;
+    if (processor.isRecordingMetrics())
+      processor.getMetrics().documentProcessed(processor.getExpressionKeyGenerator().size(),
+        processor.getValueKeyGenerator().size());
+  }
+
+  private List<XPathResultValue> findNextRow() throws XMLQueryException
+  {
+    if (currentColumn == -2)
+      return null;
+    else if (plan.getColumnCount() == 0) {
+      finish();
+      return null;
+    }
+
+    if (currentColumn == -1) { // Evaluate the context-free columns, then build the rows in the first column
+      if (!evaluateContextFreeColumns()) {
+        finish();
+        return null;
+      }
+      columnIterators.set(0, expandColumn(0, document));
+      currentColumn = 0;
+    }
+
+    while (currentColumn >= startColumn) {
+      Iterator<XPathResultValue> columnIterator = columnIterators.get(currentColumn);
+
+      if (!columnIterator.hasNext()) {
+        columnIterators.set(currentColumn, null);
+        currentColumn--;
+      } else {
+        currentRow[currentColumn] = columnIterator.next();
+
+        if (currentColumn == plan.getColumnCount() - 1)
+          return new ArrayList<>(Arrays.asList(currentRow));
+        else { // Expand the next column using the rightmost node in the row
+          Object context = currentRow[currentColumn].getNode();
+          currentColumn++;
+          columnIterators.set(currentColumn, expandColumn(currentColumn, context));
+        }
+      }
+    }
+    finish(); // Exhausted
+    return null;
+  }
+
+  private Iterator<XPathResultValue> expandColumn(int column, Object context) throws XMLQueryException
+  {
+    List<XPathResultValue> values = evaluateColumn(column, context);
+
+    if (processor.isRecordingMetrics())
+      processor.getMetrics().columnExpanded(column, plan.getExpression(column), values.size());
+
+    return values.iterator();
+  }
+
+  /**
+   * Evaluate a column for a context node without touching this iterator's state, so that iterators created from
+   * this one as a prototype can be evaluated on other threads.
+   */
+  List<XPathResultValue> evaluateColumnConcurrently(int column, Object context) throws XMLQueryException
+  {
+    if (deferredErrors[column] != null)
+      throw deferredErrors[column];
+
+    List<XPathResultValue> values = plan.isContextFree(column) ? evaluatedColumns.get(column) :
+      generateColumn(column, context);
+
+    if (processor.isRecordingMetrics())
+      processor.getMetrics().columnExpanded(column, plan.getExpression(column), values.size());
+
+    return values;
+  }
+
+  /**
+   * Evaluate every context-free column once, returning false if one of them is empty so that the table has no
+   * rows. Errors are held back until their column would have been evaluated in row order.
+   */
+  boolean evaluateContextFreeColumns()
+  {
+    for (int column = 0; column < plan.getColumnCount(); column++) {
+      if (plan.isContextFree(column)) {
+        try {
+          if (evaluateColumn(column, document).isEmpty())
+            return false;
+        } catch (XMLQueryException e) {
+          deferredErrors[column] = e;
+        }
+      }
+    }
+    return true;
+  }
+
+  private List<XPathResultValue> evaluateColumn(int column, Object context) throws XMLQueryException
+  {
+    if (deferredErrors[column] != null)
+      throw deferredErrors[column];
+
+    List<XPathResultValue> values = evaluatedColumns.get(column);
+
+    if (values == null || (!plan.isContextFree(column) && evaluatedContexts[column] != context)) {
+      values = generateColumn(column, context);
+      evaluatedColumns.set(column, values);
+      evaluatedContexts[column] = context;
+    }
+    return values;
+  }
+
+  private List<XPathResultValue> generateColumn(int column, Object context) throws XMLQueryException
+  {
+    List<Object> selection = documentSelections != null && context == document ?
+      documentSelections.remove(column) : null;
+
+    if (selection != null)
+      return processor.generateResultValuesColumn(selection, plan.getExpression(column), locationIndex);
+
+    return compactDocument != null ?
+      processor.generateResultValuesColumnForNode(compactDocument, context, plan.getExpression(column)) :
+      processor.generateResultValuesColumnForNode(context, plan.getExpression(column), locationIndex, resultCache);
+  }
+}
@@ -0,0 +1,14 @@
+package org.xmlquery;
+
+import java.util.List;
+
+/**
+ * Receives rows of {@link XPathResultValue}s as they are produced.
+ *
+ * @see XPathResultValueTable
+ * @see XPathBatchProcessor
+ */
+public interface XPathResultRowSink
+{
+  void acceptRow(List<XPathResultValue> row) throws XMLQueryException;
+}
@@ -4,25 +4,67 @@ package org.xmlquery;
  * A value generated after evaluating an XPath expression. Includes the XPATH expression, the
  * XPATH absolute location of the node, the result value and the source JDOM node (which
  * contains the JDOM node that contained the value).
+ * <p>
+ * Values created by a processor may read their node's value and absolute location the first time they are
+ * requested and then keep them, so neither is built for a value that is never read. Generated keys and interned
+ * values are computed when the value is created. A value or location read later reflects the document as it is
+ * at the first request, so a document must not be modified while its unread result values are in use.
  *
  * @see XPathResultValueTable
  */
 public class XPathResultValue
 {
-  private final String value;
-  private final String xPathAbsoluteLocation;
   private final String xPathExpression;
   private final Object node;
+  private final Resolver resolver;
+  private volatile String value;
+  private volatile String xPathAbsoluteLocation;
+  private volatile boolean isValueResolved, isXPathAbsoluteLocationResolved;
 
   public XPathResultValue(String xPathExpression, String xPathAbsoluteLocation, Object node, String value)
   {
+    this.xPathExpression = xPathExpression;
+    this.node = node;
+    this.resolver = null;
     this.value = value;
     this.xPathAbsoluteLocation = xPathAbsoluteLocation;
+    this.isValueResolved = true;
+    this.isXPathAbsoluteLocationResolved = true;
+  }
+
+  /**
+   * Create a value whose value and absolute location are read from its node by a resolver when first requested.
+   */
+  XPathResultValue(String xPathExpression, Object node, Resolver resolver)
+  {
     this.xPathExpression = xPathExpression;
     this.node = node;
+    this.resolver = resolver;
+    this.isValueResolved = false;
+    this.isXPathAbsoluteLocationResolved = false;
   }
 
-  public String getValue() { return this.value; }
+  /**
+   * Create a value whose absolute location is read from its node by a resolver when first requested.
+   */
+  XPathResultValue(String xPathExpression, Object node, String value, Resolver resolver)
+  {
+    this.xPathExpression = xPathExpression;
+    this.node = node;
+    this.resolver = resolver;
+    this.value = value;
+    this.isValueResolved = true;
+    this.isXPathAbsoluteLocationResolved = false;
+  }
+
+  public String getValue()
+  {
+    if (!isValueResolved) { // Resolution is repeatable, so racing threads compute the same string
+      value = resolver.resolveValue(node);
+      isValueResolved = true;
+    }
+    return value;
+  }
 
   public Object getNode()
   {
@@ -34,8 +76,16 @@ public class XPathResultValue
     return xPathExpression;
   }
 
+  /**
+   * The absolute location of the node, or null if the processor that created this value does not track
+   * locations.
+   */
   public String getXPathAbsoluteLocation()
   {
+    if (!isXPathAbsoluteLocationResolved) {
+      xPathAbsoluteLocation = resolver.resolveXPathAbsoluteLocation(node);
+      isXPathAbsoluteLocationResolved = true;
+    }
     return xPathAbsoluteLocation;
   }
 
@@ -46,7 +96,18 @@ public class XPathResultValue
 
   public String toString()
   {
-    return "[location: " + xPathAbsoluteLocation + ", query: " + xPathExpression + ", node: " + node + ", " + super
-      .toString() + "]";
+    return "[location: " + getXPathAbsoluteLocation() + ", query: " + xPathExpression + ", node: " + node + ", " +
+      super.toString() + "]";
+  }
+
+  /**
+   * Reads the value and absolute location of a node for the values of one column. The node's type is checked
+   * when the value is created, so reading cannot fail.
+   */
+  interface Resolver
+  {
+    String resolveValue(Object node);
+
+    String resolveXPathAbsoluteLocation(Object node);
   }
 }
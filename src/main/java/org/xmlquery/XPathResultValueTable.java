@@ -9,7 +9,7 @@ import java.util.List;
  * @see XPathExpressionProcessor
  * @see XPathResultValue
  */
-public class XPathResultValueTable
+public class XPathResultValueTable implements XPathResultRowSink
 {
   private String tableName;
   private List<String> columnNames;
@@ -54,6 +54,11 @@ public class XPathResultValueTable
     rows.add(row);
   }
 
+  @Override public void acceptRow(List<XPathResultValue> row)
+  {
+    addRow(row);
+  }
+
   public boolean isEmpty()
   {
     return rows.isEmpty();
@@ -61,7 +66,16 @@ public class XPathResultValueTable
 
   public void appendTable(XPathResultValueTable table)
   {
-    rows.addAll(table.getRows());
+    for (List<XPathResultValue> row : table.getRows())
+      addRow(row);
+  }
+
+  /**
+   * Create an empty table with the same name, column names and storage as this one.
+   */
+  public XPathResultValueTable createEmptyTable()
+  {
+    return new XPathResultValueTable(tableName, columnNames);
   }
 
   public String toDebugString()
@@ -70,7 +84,7 @@ public class XPathResultValueTable
 
     sb.append(buildColumnNamesString());
 
-    for (List<XPathResultValue> row : rows) {
+    for (List<XPathResultValue> row : getRows()) {
       sb.append("[");
       boolean isFirstValue = true;
       for (XPathResultValue value : row) {
@@ -91,7 +105,7 @@ public class XPathResultValueTable
 
     sb.append(buildColumnNamesString());
 
-    for (List<XPathResultValue> row : rows) {
+    for (List<XPathResultValue> row : getRows()) {
       boolean isFirstValue = true;
       for (XPathResultValue value : row) {
         if (!isFirstValue)
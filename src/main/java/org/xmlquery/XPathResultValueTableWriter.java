@@ -0,0 +1,246 @@
+package org.xmlquery;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes result rows as CSV or TSV text as they arrive, so that a table never has to be held as text in memory.
+ * Rows can come from a materialized {@link XPathResultValueTable}, a row iterator, or any producer that delivers
+ * rows to an {@link XPathResultRowSink}. Output is buffered internally; byte targets are written as UTF-8.
+ * <p>
+ * CSV follows RFC 4180: values containing a comma, quote or line break are quoted, with quotes doubled, and
+ * lines end with CRLF. TSV escapes tab, line feed, carriage return and backslash as {@code \t}, {@code \n},
+ * {@code \r} and {@code \\}, and lines end with LF. A null value is written as an empty field.
+ * <p>
+ * Writers are not thread-safe; {@link XPathBatchProcessor} delivers rows to a sink one at a time.
+ *
+ * @see XPathExpressionProcessor#iterateXPathExpressions
+ */
+public class XPathResultValueTableWriter implements XPathResultRowSink, Flushable, Closeable
+{
+  public enum Format
+  {
+    CSV(',', "\r\n"), TSV('\t', "\n");
+
+    private final char separator;
+    private final String lineTerminator;
+
+    Format(char separator, String lineTerminator)
+    {
+      this.separator = separator;
+      this.lineTerminator = lineTerminator;
+    }
+
+    public char getSeparator()
+    {
+      return separator;
+    }
+
+    public String getLineTerminator()
+    {
+      return lineTerminator;
+    }
+  }
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Writer writer;
+  private final Format format;
+  private final char[] buffer;
+  private int bufferedCharCount;
+  private long rowCount;
+
+  public XPathResultValueTableWriter(Writer writer, Format format)
+  {
+    this.writer = writer;
+    this.format = format;
+    this.buffer = new char[BUFFER_SIZE];
+    this.bufferedCharCount = 0;
+    this.rowCount = 0;
+  }
+
+  public XPathResultValueTableWriter(OutputStream outputStream, Format format)
+  {
+    this(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), format);
+  }
+
+  public XPathResultValueTableWriter(WritableByteChannel channel, Format format)
+  {
+    this(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), format);
+  }
+
+  public Format getFormat()
+  {
+    return format;
+  }
+
+  /**
+   * The number of rows written so far, not counting the header.
+   */
+  public long getRowCount()
+  {
+    return rowCount;
+  }
+
+  public void writeHeader(List<String> columnNames) throws XMLQueryException
+  {
+    for (int i = 0; i < columnNames.size(); i++) {
+      if (i > 0)
+        append(format.separator);
+      appendField(columnNames.get(i));
+    }
+    append(format.lineTerminator);
+  }
+
+  @Override public void acceptRow(List<XPathResultValue> row) throws XMLQueryException
+  {
+    for (int i = 0; i < row.size(); i++) {
+      if (i > 0)
+        append(format.separator);
+      appendField(row.get(i).getValue());
+    }
+    append(format.lineTerminator);
+    rowCount++;
+  }
+
+  /**
+   * Write a table, preceded by a header line if it has column names.
+   */
+  public void writeTable(XPathResultValueTable table) throws XMLQueryException
+  {
+    if (!table.getColumnNames().isEmpty())
+      writeHeader(table.getColumnNames());
+
+    for (List<XPathResultValue> row : table.getRows())
+      acceptRow(row);
+  }
+
+  /**
+   * Write rows as they are produced, for example by {@link XPathExpressionProcessor#iterateXPathExpressions}.
+   */
+  public void writeRows(Iterator<List<XPathResultValue>> rows) throws XMLQueryException
+  {
+    try {
+      while (rows.hasNext())
+        acceptRow(rows.next());
+    } catch (UncheckedXMLQueryException e) {
+      throw e.getCause();
+    }
+  }
+
+  @Override public void flush() throws IOException
+  {
+    flushBuffer();
+    writer.flush();
+  }
+
+  @Override public void close() throws IOException
+  {
+    try {
+      flushBuffer();
+    } finally {
+      writer.close();
+    }
+  }
+
+  private void appendField(String value) throws XMLQueryException
+  {
+    if (value == null)
+      return;
+
+    if (format == Format.CSV)
+      appendCSVField(value);
+    else
+      appendTSVField(value);
+  }
+
+  private void appendCSVField(String value) throws XMLQueryException
+  {
+    boolean needsQuotes = false;
+
+    for (int i = 0; i < value.length() && !needsQuotes; i++) {
+      char c = value.charAt(i);
+      needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+
+    if (!needsQuotes)
+      append(value);
+    else {
+      append('"');
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '"')
+          append('"');
+        append(c);
+      }
+      append('"');
+    }
+  }
+
+  private void appendTSVField(String value) throws XMLQueryException
+  {
+    int start = 0;
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      char escape = c == '\t' ? 't' : c == '\n' ? 'n' : c == '\r' ? 'r' : c == '\\' ? '\\' : 0;
+
+      if (escape != 0) {
+        append(value, start, i);
+        append('\\');
+        append(escape);
+        start = i + 1;
+      }
+    }
+    append(value, start, value.length());
+  }
+
+  private void append(char c) throws XMLQueryException
+  {
+    if (bufferedCharCount == buffer.length)
+      drainBuffer();
+    buffer[bufferedCharCount++] = c;
+  }
+
+  private void append(String s) throws XMLQueryException
+  {
+    append(s, 0, s.length());
+  }
+
+  private void append(String s, int start, int end) throws XMLQueryException
+  {
+    while (start < end) {
+      if (bufferedCharCount == buffer.length)
+        drainBuffer();
+
+      int count = Math.min(end - start, buffer.length - bufferedCharCount);
+      s.getChars(start, start + count, buffer, bufferedCharCount);
+      bufferedCharCount += count;
+      start += count;
+    }
+  }
+
+  private void drainBuffer() throws XMLQueryException
+  {
+    try {
+      flushBuffer();
+    } catch (IOException e) {
+      throw new XMLQueryException("error writing result rows: " + e.getMessage(), e);
+    }
+  }
+
+  private void flushBuffer() throws IOException
+  {
+    writer.write(buffer, 0, bufferedCharCount);
+    bufferedCharCount = 0;
+  }
+}
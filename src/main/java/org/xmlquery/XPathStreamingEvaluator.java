@@ -0,0 +1,448 @@
+package org.xmlquery;
+
+import org.jdom.Document;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates a list of {@link XPathExpression}s in a single forward StAX pass over an XML stream, producing the
+ * same rows as {@link XPathExpressionProcessor#processXPathExpressions} without building a JDOM document.
+ * Only the values matched inside the current outermost first-column node are held in memory.
+ * <p>
+ * A list can be streamed when every expression is a {@link SimpleLocationPath}: child and descendant element
+ * steps with attribute existence or equality predicates, and an attribute step in the last column only. Every
+ * expression after the first must be relative. Other lists are evaluated by building a document and using the
+ * processor, so callers do not need to check.
+ * <p>
+ * Streamed values have no JDOM node; {@link XPathResultValue#getNode()} returns null for them.
+ *
+ * @see XPathExpressionProcessor
+ * @see SimpleLocationPath
+ */
+public class XPathStreamingEvaluator
+{
+  private final XPathExpressionProcessor processor;
+  private final XMLInputFactory inputFactory;
+
+  public XPathStreamingEvaluator(XPathExpressionProcessor processor)
+  {
+    this.processor = processor;
+    this.inputFactory = XMLInputFactory.newInstance();
+  }
+
+  /**
+   * Test whether a list of expressions can be evaluated in a single streaming pass.
+   */
+  public static boolean isStreamable(List<XPathExpression> expressions)
+  {
+    return parseStreamablePaths(expressions) != null;
+  }
+
+  public XPathResultValueTable processXMLStream(String inputXMLStreamName, List<XPathExpression> expressions,
+    XPathResultValueTable accumulatedXPathResultValueTable) throws XMLQueryException
+  {
+    XPathResultValueTable resultTable = accumulatedXPathResultValueTable.createEmptyTable();
+
+    processXMLStream(inputXMLStreamName, expressions, (XPathResultRowSink)resultTable);
+
+    return resultTable;
+  }
+
+  /**
+   * Evaluate the expressions against an XML stream, delivering rows to the sink as soon as they are complete.
+   */
+  public void processXMLStream(String inputXMLStreamName, List<XPathExpression> expressions, XPathResultRowSink sink)
+    throws XMLQueryException
+  {
+    List<SimpleLocationPath> paths = parseStreamablePaths(expressions);
+
+    if (paths == null)
+      processDocument(processor.parseXMLStream(inputXMLStreamName), expressions, sink);
+    else {
+      InputStream xmlStream = XMLUtil.createInputXMLStream(inputXMLStreamName);
+      try {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(xmlStream);
+        try {
+          new StreamingPass(expressions, paths, sink).run(reader);
+        } finally {
+          reader.close();
+        }
+      } catch (XMLStreamException e) {
+        throw new XMLQueryException("error streaming XML file '" + inputXMLStreamName + "': " + e.getMessage(), e);
+      } finally {
+        try {
+          xmlStream.close();
+        } catch (IOException e) {
+          // TODO log
+        }
+      }
+    }
+  }
+
+  private void processDocument(Document document, List<XPathExpression> expressions, XPathResultRowSink sink)
+    throws XMLQueryException
+  {
+    XPathResultRowIterator rows = processor.createRowIterator(document, expressions);
+
+    try {
+      while (rows.hasNext())
+        sink.acceptRow(rows.next());
+    } catch (UncheckedXMLQueryException e) {
+      throw e.getCause();
+    } finally {
+      rows.finish();
+    }
+  }
+
+  private static List<SimpleLocationPath> parseStreamablePaths(List<XPathExpression> expressions)
+  {
+    List<SimpleLocationPath> paths = new ArrayList<>();
+
+    for (int column = 0; column < expressions.size(); column++) {
+      SimpleLocationPath path = SimpleLocationPath.parse(expressions.get(column).getXPathExpression());
+
+      if (path == null)
+        return null;
+      if (column > 0 && path.isAbsolute())
+        return null; // Needs the whole document for every row
+      if (column < expressions.size() - 1 && path.endsWithAttributeStep())
+        return null; // Would be the context of the next column
+      paths.add(path);
+    }
+    return paths;
+  }
+
+  /**
+   * The state of one evaluation. Each open element has a frame recording the path steps that may match its
+   * children; matches form a tree in which the children of a match in column k are the matches of column k + 1
+   * in its context.
+   */
+  private class StreamingPass
+  {
+    private final List<XPathExpression> expressions;
+    private final List<SimpleLocationPath> paths;
+    private final XPathResultRowSink sink;
+    private final Match documentMatch;
+    private final Deque<Match> pendingFirstColumnMatches;
+    private final XPathResultValue[] currentRow;
+
+    public StreamingPass(List<XPathExpression> expressions, List<SimpleLocationPath> paths, XPathResultRowSink sink)
+    {
+      this.expressions = expressions;
+      this.paths = paths;
+      this.sink = sink;
+      this.documentMatch = new Match(-1, null, true);
+      this.pendingFirstColumnMatches = new ArrayDeque<>();
+      this.currentRow = new XPathResultValue[expressions.size()];
+    }
+
+    public void run(XMLStreamReader reader) throws XMLStreamException, XMLQueryException
+    {
+      Frame frame = new Frame(null, null, 0);
+
+      if (paths.isEmpty())
+        return;
+
+      enterContext(frame, new PathState(0, documentMatch, 0), reader);
+
+      while (reader.hasNext()) {
+        switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          frame = startElement(frame, reader);
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          endElement(frame);
+          frame = frame.parent;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if (frame.text != null)
+            frame.text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+          break;
+        default:
+          break;
+        }
+        emitCompletedRows();
+      }
+    }
+
+    private Frame startElement(Frame parent, XMLStreamReader reader) throws XMLQueryException
+    {
+      String prefix = reader.getPrefix();
+      String localName = reader.getLocalName();
+      String qualifiedName = prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+      Frame frame = new Frame(parent, qualifiedName, parent.nextChildPosition(reader.getNamespaceURI(), localName));
+
+      for (PathState state : parent.states) {
+        SimpleLocationPath.Step step = paths.get(state.column).getSteps().get(state.stepIndex);
+
+        if (step.getAxis() == SimpleLocationPath.Axis.DESCENDANT)
+          frame.addState(state);
+
+        if (step.matchesName(reader.getNamespaceURI(), localName) && matchesPredicates(step, reader)) {
+          if (state.stepIndex == paths.get(state.column).getSteps().size() - 1)
+            addElementMatch(frame, state, reader);
+          else
+            enterContext(frame, new PathState(state.column, state.origin, state.stepIndex + 1), reader);
+        }
+      }
+      return frame;
+    }
+
+    private void endElement(Frame frame) throws XMLQueryException
+    {
+      if (frame.matches != null) {
+        String value = frame.text.toString().trim();
+
+        for (Match match : frame.matches) {
+          match.value = value;
+          match.isComplete = true;
+        }
+      }
+    }
+
+    private void enterContext(Frame frame, PathState state, XMLStreamReader reader) throws XMLQueryException
+    {
+      SimpleLocationPath.Step step = paths.get(state.column).getSteps().get(state.stepIndex);
+
+      if (step.getAxis() == SimpleLocationPath.Axis.ATTRIBUTE) {
+        if (frame.parent != null) // The document node has no attributes
+          addAttributeMatches(frame, state, step, reader);
+      } else
+        frame.addState(state);
+    }
+
+    private void addElementMatch(Frame frame, PathState state, XMLStreamReader reader) throws XMLQueryException
+    {
+      Match origin = state.origin;
+
+      if (origin.lastChild() != null && origin.lastChild().frame == frame)
+        return; // Already reached through another descendant step
+
+      Match match = new Match(state.column, frame, false);
+      match.location = frame.getLocation();
+      origin.addChild(match);
+
+      if (frame.matches == null) {
+        frame.matches = new ArrayList<>(1);
+        frame.text = new StringBuilder();
+      }
+      frame.matches.add(match);
+
+      if (state.column == 0)
+        pendingFirstColumnMatches.add(match);
+
+      if (state.column < paths.size() - 1)
+        enterContext(frame, new PathState(state.column + 1, match, 0), reader);
+    }
+
+    private void addAttributeMatches(Frame frame, PathState state, SimpleLocationPath.Step step,
+      XMLStreamReader reader)
+    {
+      Match origin = state.origin;
+      int firstChildFromThisElement = origin.children.size();
+
+      while (firstChildFromThisElement > 0 && origin.children.get(firstChildFromThisElement - 1).frame == frame)
+        firstChildFromThisElement--;
+
+      for (int attributeIndex = 0; attributeIndex < reader.getAttributeCount(); attributeIndex++) {
+        String localName = reader.getAttributeLocalName(attributeIndex);
+
+        if (step.matchesName(reader.getAttributeNamespace(attributeIndex), localName)) {
+          String prefix = reader.getAttributePrefix(attributeIndex);
+          String qualifiedName = prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+          String location = frame.getLocation() + "@" + qualifiedName;
+          boolean isDuplicate = false;
+
+          for (int i = firstChildFromThisElement; i < origin.children.size(); i++)
+            if (origin.children.get(i).location.equals(location))
+              isDuplicate = true;
+
+          if (!isDuplicate) {
+            Match match = new Match(state.column, frame, true);
+            match.location = location;
+            match.value = reader.getAttributeValue(attributeIndex);
+            origin.addChild(match);
+
+            if (state.column == 0)
+              pendingFirstColumnMatches.add(match);
+          }
+        }
+      }
+    }
+
+    private boolean matchesPredicates(SimpleLocationPath.Step step, XMLStreamReader reader)
+    {
+      for (SimpleLocationPath.AttributePredicate predicate : step.getPredicates()) {
+        String attributeValue = null;
+
+        for (int attributeIndex = 0; attributeIndex < reader.getAttributeCount(); attributeIndex++) {
+          String namespaceURI = reader.getAttributeNamespace(attributeIndex);
+          if ((namespaceURI == null || namespaceURI.isEmpty()) && predicate.getAttributeName()
+            .equals(reader.getAttributeLocalName(attributeIndex))) {
+            attributeValue = reader.getAttributeValue(attributeIndex);
+            break;
+          }
+        }
+        if (!predicate.matches(attributeValue))
+          return false;
+      }
+      return true;
+    }
+
+    private void emitCompletedRows() throws XMLQueryException
+    {
+      while (!pendingFirstColumnMatches.isEmpty() && pendingFirstColumnMatches.peekFirst().isComplete) {
+        emitRows(pendingFirstColumnMatches.removeFirst());
+
+        if (pendingFirstColumnMatches.isEmpty())
+          documentMatch.children.clear(); // Only retained to detect duplicate matches
+      }
+    }
+
+    private void emitRows(Match match) throws XMLQueryException
+    {
+      XPathExpression expression = expressions.get(match.column);
+
+      currentRow[match.column] = processor.createResultValue(expression, match.location, null, match.value);
+
+      if (match.column == expressions.size() - 1) {
+        List<XPathResultValue> row = new ArrayList<>(currentRow.length);
+        for (XPathResultValue value : currentRow)
+          row.add(value);
+        sink.acceptRow(row);
+      } else
+        for (Match child : match.children)
+          emitRows(child);
+    }
+  }
+
+  private static class Frame
+  {
+    private final Frame parent;
+    private final String qualifiedName;
+    private final int position;
+    private List<PathState> states;
+    private Map<String, ChildPosition> childPositions;
+    private String location;
+    private List<Match> matches;
+    private StringBuilder text;
+
+    public Frame(Frame parent, String qualifiedName, int position)
+    {
+      this.parent = parent;
+      this.qualifiedName = qualifiedName;
+      this.position = position;
+      this.states = Collections.emptyList();
+    }
+
+    public void addState(PathState state)
+    {
+      if (states.isEmpty())
+        states = new ArrayList<>(2);
+      states.add(state);
+    }
+
+    /**
+     * Count a child element and return its position among the children with the same expanded name. Positions
+     * are keyed by local name first so that no lookup string has to be built per element.
+     */
+    public int nextChildPosition(String namespaceURI, String localName)
+    {
+      String nonNullNamespaceURI = namespaceURI == null ? "" : namespaceURI;
+      ChildPosition childPosition;
+
+      if (childPositions == null)
+        childPositions = new HashMap<>();
+
+      childPosition = childPositions.get(localName);
+      while (childPosition != null && !childPosition.namespaceURI.equals(nonNullNamespaceURI))
+        childPosition = childPosition.next;
+
+      if (childPosition == null) {
+        childPosition = new ChildPosition(nonNullNamespaceURI, childPositions.get(localName));
+        childPositions.put(localName, childPosition);
+      }
+      return ++childPosition.count;
+    }
+
+    public String getLocation()
+    {
+      if (location == null) {
+        if (parent.parent == null)
+          location = "/" + qualifiedName;
+        else
+          location = parent.getLocation() + "/" + qualifiedName + "[" + position + "]";
+      }
+      return location;
+    }
+  }
+
+  private static class ChildPosition
+  {
+    private final String namespaceURI;
+    private final ChildPosition next;
+    private int count;
+
+    public ChildPosition(String namespaceURI, ChildPosition next)
+    {
+      this.namespaceURI = namespaceURI;
+      this.next = next;
+    }
+  }
+
+  private static class PathState
+  {
+    private final int column;
+    private final Match origin;
+    private final int stepIndex;
+
+    public PathState(int column, Match origin, int stepIndex)
+    {
+      this.column = column;
+      this.origin = origin;
+      this.stepIndex = stepIndex;
+    }
+  }
+
+  private static class Match
+  {
+    private final int column;
+    private final Frame frame;
+    private final List<Match> children;
+    private boolean isComplete;
+    private String location;
+    private String value;
+
+    public Match(int column, Frame frame, boolean isComplete)
+    {
+      this.column = column;
+      this.frame = frame;
+      this.children = new ArrayList<>();
+      this.isComplete = isComplete;
+    }
+
+    public void addChild(Match child)
+    {
+      children.add(child);
+    }
+
+    public Match lastChild()
+    {
+      return children.isEmpty() ? null : children.get(children.size() - 1);
+    }
+  }
+}
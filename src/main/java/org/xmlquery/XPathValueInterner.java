@@ -0,0 +1,220 @@
+package org.xmlquery;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deduplicates the values of result cells as they are created, so that equal values in a column share one
+ * string instance instead of each cell retaining its own copy. Values are held in bounded concurrent intern
+ * tables, either one per column or one for the whole table; once a table is full, further new values pass
+ * through unchanged, so a high-cardinality column costs at most one full table. Distinct-value statistics are
+ * kept for every column.
+ * <p>
+ * Columns are identified by the display names of their expressions. Interners are thread-safe and may be shared
+ * between processors.
+ *
+ * @see XPathExpressionProcessor#XPathExpressionProcessor(XPathKeyGenerator, XPathKeyGenerator, int,
+ * XPathProcessorMetrics, XPathValueInterner)
+ */
+public class XPathValueInterner
+{
+  public static final int DEFAULT_MAXIMUM_DISTINCT_VALUES = 4096;
+
+  public enum Scope
+  {
+    /**
+     * Each column has its own intern table.
+     */
+    COLUMN,
+    /**
+     * All columns share one intern table.
+     */
+    TABLE
+  }
+
+  private final Scope scope;
+  private final int maximumDistinctValues;
+  private final InternTable tableInternTable;
+  private final ConcurrentMap<String, InternTable> columnInternTables;
+  private final ConcurrentMap<String, ColumnStatistics> columnStatistics;
+
+  public XPathValueInterner()
+  {
+    this(Scope.COLUMN, DEFAULT_MAXIMUM_DISTINCT_VALUES);
+  }
+
+  /**
+   * @param maximumDistinctValues the maximum number of values held by each intern table
+   */
+  public XPathValueInterner(Scope scope, int maximumDistinctValues)
+  {
+    if (maximumDistinctValues < 1)
+      throw new IllegalArgumentException("maximum distinct values must be positive, got " + maximumDistinctValues);
+
+    this.scope = scope;
+    this.maximumDistinctValues = maximumDistinctValues;
+    this.tableInternTable = scope == Scope.TABLE ? new InternTable() : null;
+    this.columnInternTables = new ConcurrentHashMap<>();
+    this.columnStatistics = new ConcurrentHashMap<>();
+  }
+
+  public Scope getScope()
+  {
+    return scope;
+  }
+
+  public int getMaximumDistinctValues()
+  {
+    return maximumDistinctValues;
+  }
+
+  /**
+   * Return the shared instance of a value in a column, adding the value to the column's intern table if it is
+   * new and the table has room.
+   */
+  public String intern(String columnName, String value)
+  {
+    if (value == null)
+      return null;
+
+    ColumnStatistics statistics = getColumnStatistics(columnName);
+    InternTable internTable = tableInternTable != null ? tableInternTable : getColumnInternTable(columnName);
+    String internedValue = internTable.values.get(value);
+
+    statistics.cellCount.increment();
+
+    if (internedValue != null) {
+      statistics.sharedCellCount.increment();
+      return internedValue;
+    }
+
+    if (internTable.size.incrementAndGet() > maximumDistinctValues) {
+      internTable.size.decrementAndGet();
+      statistics.overflowCellCount.increment();
+      return value;
+    }
+
+    internedValue = internTable.values.putIfAbsent(value, value);
+    if (internedValue != null) { // Another thread added it first
+      internTable.size.decrementAndGet();
+      statistics.sharedCellCount.increment();
+      return internedValue;
+    }
+    statistics.distinctValueCount.increment();
+    return value;
+  }
+
+  /**
+   * A snapshot of the statistics for each column, ordered by column name.
+   */
+  public Map<String, ColumnStatistics> getColumnStatistics()
+  {
+    return Collections.unmodifiableMap(new TreeMap<>(columnStatistics));
+  }
+
+  /**
+   * Empty the intern tables and reset the statistics.
+   */
+  public void clear()
+  {
+    if (tableInternTable != null)
+      tableInternTable.clear();
+    columnInternTables.clear();
+    columnStatistics.clear();
+  }
+
+  private InternTable getColumnInternTable(String columnName)
+  {
+    InternTable internTable = columnInternTables.get(columnName);
+
+    return internTable != null ? internTable : columnInternTables.computeIfAbsent(columnName, c -> new InternTable());
+  }
+
+  private ColumnStatistics getColumnStatistics(String columnName)
+  {
+    ColumnStatistics statistics = columnStatistics.get(columnName);
+
+    return statistics != null ? statistics :
+      columnStatistics.computeIfAbsent(columnName, c -> new ColumnStatistics());
+  }
+
+  private static class InternTable
+  {
+    private final ConcurrentMap<String, String> values = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private void clear()
+    {
+      values.clear();
+      size.set(0);
+    }
+  }
+
+  /**
+   * The distinct-value statistics of one column.
+   */
+  public static class ColumnStatistics
+  {
+    private final LongAdder cellCount = new LongAdder();
+    private final LongAdder sharedCellCount = new LongAdder();
+    private final LongAdder overflowCellCount = new LongAdder();
+    private final LongAdder distinctValueCount = new LongAdder();
+
+    /**
+     * The number of non-null values interned for this column.
+     */
+    public long getCellCount()
+    {
+      return cellCount.sum();
+    }
+
+    /**
+     * The number of cells that were given an instance already in the intern table.
+     */
+    public long getSharedCellCount()
+    {
+      return sharedCellCount.sum();
+    }
+
+    /**
+     * The number of cells whose values were new but not added because the intern table was full.
+     */
+    public long getOverflowCellCount()
+    {
+      return overflowCellCount.sum();
+    }
+
+    /**
+     * The number of distinct values this column added to the intern table. With a table-wide scope, values first
+     * seen in another column are not counted.
+     */
+    public long getDistinctValueCount()
+    {
+      return distinctValueCount.sum();
+    }
+
+    /**
+     * Whether some of this column's values were not interned, in which case it has more distinct values than
+     * {@link #getDistinctValueCount()}.
+     */
+    public boolean isOverflowed()
+    {
+      return getOverflowCellCount() > 0;
+    }
+
+    @Override public String toString()
+    {
+      return "ColumnStatistics{" +
+        "cellCount=" + getCellCount() +
+        ", sharedCellCount=" + getSharedCellCount() +
+        ", overflowCellCount=" + getOverflowCellCount() +
+        ", distinctValueCount=" + getDistinctValueCount() +
+        '}';
+    }
+  }
+}